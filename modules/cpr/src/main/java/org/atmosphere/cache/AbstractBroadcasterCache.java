@@ -15,6 +15,7 @@
  */
 package org.atmosphere.cache;
 
+import org.atmosphere.cpr.ApplicationConfig;
 import org.atmosphere.cpr.AtmosphereResource;
 import org.atmosphere.cpr.BroadcasterCache;
 import org.atmosphere.cpr.BroadcasterConfig;
@@ -22,13 +23,12 @@ import org.atmosphere.util.ExecutorsFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.AbstractSet;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -37,66 +37,126 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Abstract {@link org.atmosphere.cpr.BroadcasterCache} which is used to implement headers, query parameters or
- * session based caching.
+ * session based caching. The messages are stored in a {@link MessageRing} ordered by creation time, bounded by
+ * {@link ApplicationConfig#BROADCASTERCACHE_MAX_SIZE}, and expired by the {@link CacheExpiry} of the application when
+ * the oldest message is due.
+ * <p/>
+ * The {@link #messages}, {@link #messagesIds}, {@link #readWriteLock}, {@link #scheduledFuture}, {@link #reaper} and
+ * {@link #isShared} fields are kept for the existing subclasses, and are deprecated: the {@link MessageRing} is
+ * thread safe and indexes the messages by ID, and the messages are expired without a reaper.
  *
  * @author Paul Khodchenkov
  * @author Jeanfrancois Arcand
  */
-public abstract class AbstractBroadcasterCache implements BroadcasterCache {
+public abstract class AbstractBroadcasterCache implements BroadcasterCache, CacheExpiry.Expirable {
     private final Logger logger = LoggerFactory.getLogger(AbstractBroadcasterCache.class);
 
-    protected final List<CacheMessage> messages = new LinkedList<CacheMessage>();
-    protected final Set<String> messagesIds = new HashSet<String>();
+    public static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+
+    protected final MessageRing ring = new MessageRing().maxSize(DEFAULT_MAX_CACHE_SIZE);
+    /**
+     * @deprecated use {@link #ring}
+     */
+    @Deprecated
+    protected final List<CacheMessage> messages = ring;
+    /**
+     * A view of the IDs of the {@link #ring}. An ID is added with its message.
+     *
+     * @deprecated use {@link MessageRing#containsId(String)}
+     */
+    @Deprecated
+    protected final Set<String> messagesIds = new AbstractSet<String>() {
+        @Override
+        public boolean contains(Object o) {
+            return o != null && ring.containsId(o.toString());
+        }
+
+        @Override
+        public boolean add(String id) {
+            return !ring.containsId(id);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return o != null && ring.removeId(o.toString());
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return ring.ids().iterator();
+        }
+
+        @Override
+        public int size() {
+            return ring.size();
+        }
+    };
+    /**
+     * @deprecated the {@link #ring} is thread safe
+     */
+    @Deprecated
     protected final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    /**
+     * @deprecated the messages are expired by the {@link CacheExpiry}
+     */
+    @Deprecated
     protected ScheduledFuture scheduledFuture;
+    /**
+     * The scheduler of the application once configured.
+     *
+     * @deprecated the messages are expired by the {@link CacheExpiry}
+     */
+    @Deprecated
+    protected ScheduledExecutorService reaper;
+    /**
+     * @deprecated the {@link #reaper} is always the scheduler of the application
+     */
+    @Deprecated
+    protected boolean isShared = false;
     protected long maxCacheTime = TimeUnit.MINUTES.toMillis(2); // 2 minutes
     protected long invalidateCacheInterval = TimeUnit.MINUTES.toMillis(1); // 1 minute
-    protected ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor();
-    protected boolean isShared = false;
+    protected CacheExpiry expiry;
     protected final List<BroadcasterCacheInspector> inspectors = new LinkedList<BroadcasterCacheInspector>();
     protected final List<Object> emptyList = Collections.<Object>emptyList();
+    protected MessageEncoder encoder;
 
     @Override
     public void start() {
-        scheduledFuture = reaper.scheduleAtFixedRate(new Runnable() {
-
-            public void run() {
-                readWriteLock.writeLock().lock();
-                try {
-                    long now = System.nanoTime();
-                    List<CacheMessage> expiredMessages = new ArrayList<CacheMessage>();
-
-                    for (CacheMessage message : messages) {
-                        if (TimeUnit.NANOSECONDS.toMillis(now - message.getCreateTime()) > maxCacheTime) {
-                            expiredMessages.add(message);
-                        }
-                    }
-
-                    for (CacheMessage expiredMessage : expiredMessages) {
-                        messages.remove(expiredMessage);
-                        messagesIds.remove(expiredMessage.getId());
-                    }
-                } finally {
-                    readWriteLock.writeLock().unlock();
-                }
-            }
-        }, 0, invalidateCacheInterval, TimeUnit.MILLISECONDS);
+        if (expiry == null) {
+            expiry = CacheExpiry.getDefault();
+        }
+
+        if (!ring.isEmpty()) {
+            expiry.schedule(this, System.currentTimeMillis());
+        }
     }
 
     @Override
     public void cleanup() {
-        if (scheduledFuture != null) {
-            scheduledFuture.cancel(false);
-            scheduledFuture = null;
+        if (expiry != null) {
+            expiry.cancel(this);
         }
     }
 
     @Override
     public void stop() {
         cleanup();
-        if (!isShared) {
-            reaper.shutdown();
+    }
+
+    @Override
+    public long expire(long now) {
+        long nanoTime = System.nanoTime();
+        int expired = ring.expire(nanoTime - TimeUnit.MILLISECONDS.toNanos(maxCacheTime));
+        logger.trace("Expired {} messages", expired);
+
+        Long oldest = ring.oldestTime();
+        if (oldest == null) {
+            return -1;
         }
+
+        // Round up to the purge interval, so the expirations of close messages are done at once.
+        long due = now + TimeUnit.NANOSECONDS.toMillis(oldest - nanoTime) + maxCacheTime;
+        return invalidateCacheInterval > 0 ? (due / invalidateCacheInterval + 1) * invalidateCacheInterval : due;
     }
 
     protected CacheMessage put(BroadcastMessage message, Long now) {
@@ -104,41 +164,29 @@ public abstract class AbstractBroadcasterCache implements BroadcasterCache {
 
         logger.trace("Caching message {} for Broadcaster {}", message.message);
 
-        readWriteLock.writeLock().lock();
-        CacheMessage cacheMessage = null;
-        try {
-            boolean hasMessageWithSameId = messagesIds.contains(message.id);
-            if (!hasMessageWithSameId) {
-                cacheMessage = new CacheMessage(message.id, now, message.message);
-                messages.add(cacheMessage);
-                messagesIds.add(message.id);
-            }
-        } finally {
-            readWriteLock.writeLock().unlock();
+        Object o = encoder == null ? message.message : encoder.encode(message.message);
+        CacheMessage cacheMessage = new CacheMessage(message.id, now, o);
+        if (!ring.add(cacheMessage)) {
+            return null;
+        }
+
+        if (expiry != null) {
+            expiry.schedule(this, System.currentTimeMillis() + maxCacheTime + invalidateCacheInterval);
         }
         return cacheMessage;
     }
 
     protected List<Object> get(long cacheHeaderTime) {
-        List<Object> result = new ArrayList<Object>();
-        readWriteLock.readLock().lock();
-        try {
-            for (CacheMessage cacheMessage : messages) {
-                if (cacheMessage.getCreateTime() > cacheHeaderTime) {
-                    result.add(cacheMessage.getMessage());
-                }
-            }
-
-        } finally {
-            readWriteLock.readLock().unlock();
+        List<Object> result = ring.after(cacheHeaderTime);
+        if (encoder != null) {
+            encoder.decode(result);
         }
-
         logger.trace("Retrieved messages {}", result);
         return result;
     }
 
     /**
-     * Set the delay between cache purges.
+     * Set the delay between cache purges. Messages are removed at most this delay after they expire.
      *
      * @param invalidateCacheInterval the purge interval in milliseconds
      * @return this
@@ -159,6 +207,28 @@ public abstract class AbstractBroadcasterCache implements BroadcasterCache {
         return this;
     }
 
+    /**
+     * Store the encoded form of the messages, see {@link MessageEncoder}.
+     *
+     * @param encoder a {@link MessageEncoder}, or null to store the messages as they are
+     * @return this
+     */
+    public AbstractBroadcasterCache setEncoder(MessageEncoder encoder) {
+        this.encoder = encoder;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of cached messages. When reached, the oldest message is dropped.
+     *
+     * @param maxCacheSize the maximum number of messages, or -1 for unbounded
+     * @return this
+     */
+    public AbstractBroadcasterCache setMaxCacheSize(int maxCacheSize) {
+        ring.maxSize(maxCacheSize);
+        return this;
+    }
+
     @Override
     public BroadcasterCache inspector(BroadcasterCacheInspector b) {
         inspectors.add(b);
@@ -174,23 +244,20 @@ public abstract class AbstractBroadcasterCache implements BroadcasterCache {
 
     @Override
     public void configure(BroadcasterConfig config) {
-        Object o = config.getAtmosphereConfig().properties().get("shared");
-        if (o != null) {
-            isShared = Boolean.parseBoolean(o.toString());
-        }
+        expiry = CacheExpiry.get(config.getAtmosphereConfig());
+        encoder = MessageEncoder.fromConfig(config.getAtmosphereConfig());
+        reaper = ExecutorsFactory.getScheduler(config.getAtmosphereConfig());
 
-        if (isShared) {
-            reaper = ExecutorsFactory.getScheduler(config.getAtmosphereConfig());
-        } else {
-            reaper = Executors.newSingleThreadScheduledExecutor();
+        String s = config.getAtmosphereConfig().getInitParameter(ApplicationConfig.BROADCASTERCACHE_MAX_SIZE);
+        if (s != null) {
+            ring.maxSize(Integer.valueOf(s));
         }
     }
 
     @Override
     public void clearCache(String broadcasterId, AtmosphereResource r, CacheMessage cache) {
         if (cache != null) {
-            messages.remove(cache);
-            messagesIds.remove(cache.getId());
+            ring.remove(cache);
         }
     }
 
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import org.atmosphere.cpr.ApplicationConfig;
+import org.atmosphere.cpr.AtmosphereConfig;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.BroadcasterConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link UUIDBroadcasterCache} bounding the memory used by the cached messages. The size of every message is
+ * estimated using {@link #sizeOf(Object)}, and the oldest messages are evicted when the caches of the application
+ * exceed their global quota or when a {@link org.atmosphere.cpr.Broadcaster} exceeds its own quota. Messages older
+ * than the maximum cache time are evicted as well, whether or not they have been retrieved.
+ * <p/>
+ * Every {@link org.atmosphere.cpr.Broadcaster} gets its own cache, so the global quota is shared by all the
+ * {@link BoundedBroadcasterCache}s configured with the same {@link AtmosphereConfig}. A message is accounted once,
+ * however many clients it is cached for, and released once no {@link UUIDBroadcasterCache.ClientQueue} holds it.
+ * <p/>
+ * The cache counts its hits, the retrievals returning messages, its misses, and its evictions, so it can be sized
+ * from real traffic. The quotas are configured using {@link ApplicationConfig#BOUNDED_BROADCASTERCACHE_MAX_BYTES},
+ * {@link ApplicationConfig#BOUNDED_BROADCASTERCACHE_MAX_BYTES_PER_BROADCASTER} and
+ * {@link ApplicationConfig#BOUNDED_BROADCASTERCACHE_MAX_TIME}.
+ * <p/>
+ * The quotas only apply to the {@link UUIDBroadcasterCache.ClientQueue}s: the {@link MessageLog} used when
+ * {@link ApplicationConfig#UUIDBROADCASTERCACHE_SHARED_LOG} is enabled is already bounded by its capacity.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class BoundedBroadcasterCache extends UUIDBroadcasterCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(BoundedBroadcasterCache.class);
+    private final static String BUDGET = BoundedBroadcasterCache.class.getName() + ".budget";
+
+    // The messages queued for at least one client, by message ID.
+    private final ConcurrentHashMap<String, Cached> live = new ConcurrentHashMap<String, Cached>();
+    // The accounted messages of this cache by message ID, oldest first. Guarded by the budget, like the quotas.
+    private final LinkedHashMap<String, Cached> cached = new LinkedHashMap<String, Cached>();
+    private final Map<String, Quota> quotas = new HashMap<String, Quota>();
+    private Budget budget = new Budget();
+
+    private long maxBytesPerBroadcaster = -1;
+    private long maxCacheTime = TimeUnit.MINUTES.toMillis(2);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    @Override
+    public void configure(BroadcasterConfig config) {
+        super.configure(config);
+
+        AtmosphereConfig c = config.getAtmosphereConfig();
+        budget = Budget.get(c);
+        String s = c.getInitParameter(ApplicationConfig.BOUNDED_BROADCASTERCACHE_MAX_BYTES);
+        if (s != null) {
+            budget.maxBytes = Long.valueOf(s);
+        }
+
+        s = c.getInitParameter(ApplicationConfig.BOUNDED_BROADCASTERCACHE_MAX_BYTES_PER_BROADCASTER);
+        if (s != null) {
+            maxBytesPerBroadcaster = Long.valueOf(s);
+        }
+
+        s = c.getInitParameter(ApplicationConfig.BOUNDED_BROADCASTERCACHE_MAX_TIME);
+        if (s != null) {
+            maxCacheTime = Long.valueOf(s);
+        }
+    }
+
+    @Override
+    public CacheMessage addToCache(String broadcasterId, AtmosphereResource r, BroadcastMessage message) {
+        CacheMessage m = super.addToCache(broadcasterId, r, message);
+        if (m == null || MessageLog.Message.class.isAssignableFrom(m.getClass())) {
+            return m;
+        }
+
+        // Not queued for any client
+        Cached c = live.get(m.getId());
+        if (c == null) {
+            return m;
+        }
+
+        synchronized (budget) {
+            // Every client may have retrieved its queue meanwhile.
+            if (c.clients.get() <= 0) {
+                live.remove(m.getId());
+                return m;
+            }
+
+            c.broadcasterId = broadcasterId;
+            c.bytes = sizeOf(m.getMessage());
+            c.accounted = true;
+            cached.put(m.getId(), c);
+            budget.cached.put(m.getId(), c);
+            Quota q = quotas.get(broadcasterId);
+            if (q == null) {
+                q = new Quota();
+                quotas.put(broadcasterId, q);
+            }
+            q.messages.put(m.getId(), c);
+            q.bytes += c.bytes;
+            budget.bytes += c.bytes;
+
+            while (maxBytesPerBroadcaster > 0 && q.bytes > maxBytesPerBroadcaster && !q.messages.isEmpty()) {
+                evict(q.messages.values().iterator().next());
+                evictions.incrementAndGet();
+            }
+
+            while (budget.maxBytes > 0 && budget.bytes > budget.maxBytes && !budget.cached.isEmpty()) {
+                Cached oldest = budget.cached.values().iterator().next();
+                oldest.owner.evict(oldest);
+                oldest.owner.evictions.incrementAndGet();
+            }
+        }
+        return m;
+    }
+
+    @Override
+    public List<Object> retrieveFromCache(String broadcasterId, AtmosphereResource r) {
+        List<Object> result = super.retrieveFromCache(broadcasterId, r);
+        if (result.isEmpty()) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    protected void enqueued(String clientId, CacheMessage m) {
+        Cached c = live.get(m.getId());
+        if (c == null) {
+            c = new Cached(this, m);
+            Cached previous = live.putIfAbsent(m.getId(), c);
+            if (previous != null) {
+                c = previous;
+            }
+        }
+        c.clients.incrementAndGet();
+    }
+
+    // Release exactly what has been removed from the queue, whether or not it has been delivered to the client.
+    @Override
+    protected void dequeued(String clientId, List<CacheMessage> messages) {
+        for (CacheMessage m : messages) {
+            Cached c = live.get(m.getId());
+            if (c == null || c.clients.decrementAndGet() > 0) continue;
+
+            synchronized (budget) {
+                // Otherwise addToCache finds no client left.
+                if (c.accounted) {
+                    remove(c);
+                }
+            }
+        }
+    }
+
+    @Override
+    public long expire(long now) {
+        long next = super.expire(now);
+
+        long time = now - maxCacheTime;
+        synchronized (budget) {
+            while (!cached.isEmpty()) {
+                Cached c = cached.values().iterator().next();
+                if (c.time >= time) break;
+
+                evict(c);
+                expirations.incrementAndGet();
+            }
+
+            if (cached.isEmpty()) {
+                return next;
+            }
+
+            long oldest = cached.values().iterator().next().time + maxCacheTime;
+            return next < 0 ? oldest : Math.min(next, oldest);
+        }
+    }
+
+    /**
+     * Estimate the memory, in bytes, used by a message.
+     *
+     * @param message a message
+     * @return the estimated size in bytes
+     */
+    protected long sizeOf(Object message) {
+        if (message instanceof String) {
+            return 40 + 2L * ((String) message).length();
+        } else if (message instanceof byte[]) {
+            return 16 + ((byte[]) message).length;
+        } else if (message instanceof MessageEncoder.Text) {
+            return 32 + ((MessageEncoder.Text) message).size();
+        } else if (message instanceof MessageEncoder.Compressed) {
+            return 32 + ((MessageEncoder.Compressed) message).size();
+        }
+        return 64;
+    }
+
+    // Remove the message from every client queue. Evictions are rare, unlike caching and retrieving messages.
+    private void evict(Cached c) {
+        remove(c);
+        for (ClientQueue queue : messages().values()) {
+            queue.remove(c.message);
+        }
+        logger.trace("Evicted message {} of Broadcaster {}", c.message, c.broadcasterId);
+    }
+
+    private void remove(Cached c) {
+        String id = c.message.getId();
+        live.remove(id);
+        cached.remove(id);
+        budget.cached.remove(id);
+        Quota q = quotas.get(c.broadcasterId);
+        if (q != null && q.messages.remove(id) != null) {
+            q.bytes -= c.bytes;
+            budget.bytes -= c.bytes;
+            if (q.messages.isEmpty()) {
+                quotas.remove(c.broadcasterId);
+            }
+        }
+        c.accounted = false;
+    }
+
+    /**
+     * Return the estimated size, in bytes, of the messages cached by all the {@link BoundedBroadcasterCache}s sharing
+     * the global quota.
+     *
+     * @return the estimated size in bytes
+     */
+    public long bytes() {
+        synchronized (budget) {
+            return budget.bytes;
+        }
+    }
+
+    /**
+     * Return the estimated size, in bytes, of the messages cached for a {@link org.atmosphere.cpr.Broadcaster}.
+     *
+     * @param broadcasterId the {@link org.atmosphere.cpr.Broadcaster} ID
+     * @return the estimated size in bytes
+     */
+    public long bytes(String broadcasterId) {
+        synchronized (budget) {
+            Quota q = quotas.get(broadcasterId);
+            return q == null ? 0 : q.bytes;
+        }
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of messages evicted because a quota was exceeded.
+     *
+     * @return the number of evicted messages
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the number of messages evicted because they were older than the maximum cache time.
+     *
+     * @return the number of expired messages
+     */
+    public long expirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * Set the global quota, shared by all the {@link BoundedBroadcasterCache}s of the application.
+     *
+     * @param maxBytes the maximum size, in bytes, of the cached messages
+     * @return this
+     */
+    public BoundedBroadcasterCache setMaxBytes(long maxBytes) {
+        budget.maxBytes = maxBytes;
+        return this;
+    }
+
+    public BoundedBroadcasterCache setMaxBytesPerBroadcaster(long maxBytesPerBroadcaster) {
+        this.maxBytesPerBroadcaster = maxBytesPerBroadcaster;
+        return this;
+    }
+
+    /**
+     * Set the maximum time a message stays alive in the cache.
+     *
+     * @param maxCacheTime the maximum time in milliseconds.
+     * @return this
+     */
+    public BoundedBroadcasterCache setMaxCacheTime(long maxCacheTime) {
+        this.maxCacheTime = maxCacheTime;
+        return this;
+    }
+
+    /**
+     * The messages cached by all the {@link BoundedBroadcasterCache}s of an application, oldest first. The budget
+     * also guards the state of every cache using it.
+     */
+    private final static class Budget {
+        final LinkedHashMap<String, Cached> cached = new LinkedHashMap<String, Cached>();
+        long bytes;
+        volatile long maxBytes = 64 * 1024 * 1024;
+
+        static Budget get(AtmosphereConfig config) {
+            synchronized (config.properties()) {
+                Object o = config.properties().get(BUDGET);
+                if (o == null) {
+                    o = new Budget();
+                    config.properties().put(BUDGET, o);
+                }
+                return Budget.class.cast(o);
+            }
+        }
+    }
+
+    private final static class Cached {
+        final BoundedBroadcasterCache owner;
+        final CacheMessage message;
+        // The number of client queues holding the message.
+        final AtomicInteger clients = new AtomicInteger();
+        final long time = System.currentTimeMillis();
+        String broadcasterId;
+        long bytes;
+        boolean accounted;
+
+        Cached(BoundedBroadcasterCache owner, CacheMessage message) {
+            this.owner = owner;
+            this.message = message;
+        }
+    }
+
+    private final static class Quota {
+        final LinkedHashMap<String, Cached> messages = new LinkedHashMap<String, Cached>();
+        long bytes;
+    }
+}
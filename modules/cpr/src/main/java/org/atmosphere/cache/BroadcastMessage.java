@@ -15,7 +15,7 @@
  */
 package org.atmosphere.cache;
 
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A wrapper around an object passed to {@link org.atmosphere.cpr.Broadcaster#broadcast(Object)}
@@ -24,6 +24,9 @@ import java.util.UUID;
  */
 public final class BroadcastMessage {
 
+    // Unique in the JVM, without going through the SecureRandom shared by UUID.randomUUID().
+    private final static AtomicLong ids = new AtomicLong();
+
     public final String id;
     public final Object message;
 
@@ -33,6 +36,6 @@ public final class BroadcastMessage {
     }
 
     public BroadcastMessage(Object message) {
-        this(UUID.randomUUID().toString(), message);
+        this(String.valueOf(ids.incrementAndGet()), message);
     }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import org.atmosphere.cpr.AtmosphereConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread expiring the entries of all the {@link org.atmosphere.cpr.BroadcasterCache}s of an application.
+ * Every cache registers the time its next entry expires, and the registrations are kept in a queue ordered by
+ * deadline. The thread sleeps until the earliest deadline, lets the cache expire its entries and registers the
+ * deadline the cache returns. An empty cache has no deadline, so the expiry work is proportional to the expiring
+ * entries, not to the number of caches.
+ * <p/>
+ * Deadlines closer than {@link #RESOLUTION} milliseconds are coalesced, so a busy cache is visited at most once per
+ * resolution.
+ * <p/>
+ * The thread is started by the first deadline, and stops once no deadline is left for an idle time, so a
+ * {@link CacheExpiry} without caches to expire, like the {@link #getDefault()} one after an application is undeployed,
+ * doesn't hold a thread.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class CacheExpiry {
+
+    private static final Logger logger = LoggerFactory.getLogger(CacheExpiry.class);
+
+    /**
+     * The minimum delay, in milliseconds, between two expirations of a cache.
+     */
+    public static final long RESOLUTION = 100;
+
+    /**
+     * The default time, in milliseconds, the thread waits for a deadline before stopping.
+     */
+    public static final long IDLE_TIME = 60000;
+
+    private static final String CACHE_EXPIRY = CacheExpiry.class.getName();
+    private static CacheExpiry defaultExpiry;
+
+    private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+    // The pending deadline of every registered cache. Cancelled and replaced deadlines stay in the queue and are
+    // skipped when they come due.
+    private final ConcurrentHashMap<Expirable, Long> pending = new ConcurrentHashMap<Expirable, Long>();
+    private final long idleTime;
+    // Guarded by this
+    private Thread thread;
+    private volatile boolean destroyed;
+
+    /**
+     * Something with entries expiring over time.
+     */
+    public static interface Expirable {
+
+        /**
+         * Expire the entries due at a time.
+         *
+         * @param now the current time in milliseconds
+         * @return the time, in milliseconds, the next entry expires, or -1 if there is no entry left
+         */
+        long expire(long now);
+    }
+
+    public CacheExpiry() {
+        this(IDLE_TIME);
+    }
+
+    /**
+     * Create a {@link CacheExpiry}.
+     *
+     * @param idleTime the time, in milliseconds, the thread waits for a deadline before stopping
+     */
+    public CacheExpiry(long idleTime) {
+        this.idleTime = idleTime;
+    }
+
+    /**
+     * Return the {@link CacheExpiry} of an application, creating it the first time. It is destroyed with the
+     * {@link org.atmosphere.cpr.AtmosphereFramework}.
+     *
+     * @param config the {@link AtmosphereConfig}
+     * @return the {@link CacheExpiry}
+     */
+    public static CacheExpiry get(AtmosphereConfig config) {
+        synchronized (config.properties()) {
+            Object o = config.properties().get(CACHE_EXPIRY);
+            if (o != null) {
+                return CacheExpiry.class.cast(o);
+            }
+
+            final CacheExpiry expiry = new CacheExpiry();
+            config.properties().put(CACHE_EXPIRY, expiry);
+            config.shutdownHook(new AtmosphereConfig.ShutdownHook() {
+                @Override
+                public void shutdown() {
+                    expiry.destroy();
+                }
+            });
+            return expiry;
+        }
+    }
+
+    /**
+     * Return the {@link CacheExpiry} used by the caches created outside of an application. Its thread only runs
+     * while those caches have entries to expire.
+     *
+     * @return the {@link CacheExpiry}
+     */
+    public static synchronized CacheExpiry getDefault() {
+        if (defaultExpiry == null) {
+            defaultExpiry = new CacheExpiry();
+        }
+        return defaultExpiry;
+    }
+
+    /**
+     * Register the time an entry expires. Nothing is done when an earlier deadline is already registered.
+     *
+     * @param e    an {@link Expirable}
+     * @param time the time in milliseconds
+     */
+    public void schedule(Expirable e, long time) {
+        for (; ; ) {
+            Long current = pending.get(e);
+            if (current != null && current <= time + RESOLUTION) {
+                return;
+            }
+
+            if (current == null ? pending.putIfAbsent(e, time) == null : pending.replace(e, current, time)) {
+                deadlines.add(new Deadline(e, time));
+                start();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the deadline of an {@link Expirable}.
+     *
+     * @param e an {@link Expirable}
+     */
+    public void cancel(Expirable e) {
+        pending.remove(e);
+    }
+
+    /**
+     * Return the number of {@link Expirable}s with a deadline.
+     *
+     * @return the number of {@link Expirable}s
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Return true if the thread is running.
+     *
+     * @return true if the thread is running
+     */
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    public void destroy() {
+        destroyed = true;
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+        pending.clear();
+        deadlines.clear();
+    }
+
+    private synchronized void start() {
+        if (thread != null || destroyed) return;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Atmosphere-CacheExpiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void loop() {
+        while (!destroyed) {
+            Deadline d;
+            try {
+                d = deadlines.poll(idleTime, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+
+            if (d == null) {
+                synchronized (this) {
+                    // A deadline registered after this check starts a new thread.
+                    if (deadlines.isEmpty()) {
+                        thread = null;
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            // Cancelled or replaced by an earlier deadline
+            if (!pending.remove(d.expirable, d.time)) continue;
+
+            long now = System.currentTimeMillis();
+            try {
+                long next = d.expirable.expire(now);
+                if (next >= 0) {
+                    schedule(d.expirable, Math.max(next, now + RESOLUTION));
+                }
+            } catch (Throwable t) {
+                logger.warn("Unable to expire the entries of {}", d.expirable, t);
+            }
+        }
+        logger.trace("{} stopped", Thread.currentThread().getName());
+    }
+
+    private final static class Deadline implements Delayed {
+        final Expirable expirable;
+        final long time;
+
+        Deadline(Expirable expirable, long time) {
+            this.expirable = expirable;
+            this.time = time;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long t = Deadline.class.cast(o).time;
+            return time < t ? -1 : time == t ? 0 : 1;
+        }
+    }
+}
@@ -20,16 +20,28 @@ public class CacheMessage {
     private final Object message;
 
     private final String id;
+    private final long sequence;
     private long createTime;
 
     public CacheMessage(String id, Object message) {
-        this.id = id;
-        this.message = message;
-        this.createTime = System.nanoTime();
+        this(id, -1, System.nanoTime(), message);
     }
 
     public CacheMessage(String id, Long now, Object message) {
+        this(id, -1, now, message);
+    }
+
+    /**
+     * Create a message with a sequence number, one more than the sequence number of the message cached before it.
+     *
+     * @param id       the message ID
+     * @param sequence the sequence number
+     * @param now      the creation time
+     * @param message  the message
+     */
+    public CacheMessage(String id, long sequence, long now, Object message) {
         this.id = id;
+        this.sequence = sequence;
         this.message = message;
         this.createTime = now;
     }
@@ -49,4 +61,13 @@ public class CacheMessage {
     public long getCreateTime() {
         return createTime;
     }
+
+    /**
+     * Return the sequence number of the message, or -1 if the cache doesn't number its messages.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
 }
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import org.atmosphere.cpr.ApplicationConfig;
+import org.atmosphere.cpr.AtmosphereConfig;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.BroadcasterCache;
+import org.atmosphere.cpr.BroadcasterConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.atmosphere.cpr.HeaderConfig.X_CACHE_DATE;
+
+/**
+ * A {@link BroadcasterCache} storing the messages of every {@link org.atmosphere.cpr.Broadcaster} in a
+ * {@link MappedLog}, a set of memory-mapped files, so the messages survive a restart of the JVM and large backlogs
+ * cost almost no heap.
+ * <p/>
+ * Every client owns a cursor in the log, the offset of the next message it hasn't received yet, which only moves past
+ * the messages delivered without gap. When a client reconnects, the messages stored after its cursor are returned.
+ * The cursor is also sent to the client using the X-Cache-Date header, so a client reconnecting after a restart of
+ * the JVM, when the server doesn't know it anymore, gets the messages it missed. The oldest segments of a log are
+ * deleted when the log is too large or too old, and the log is closed when its
+ * {@link org.atmosphere.cpr.Broadcaster} is destroyed or when it isn't used anymore.
+ * <p/>
+ * Only String and byte[] messages are cached. The logs are stored in
+ * {@link ApplicationConfig#MAPPED_BROADCASTERCACHE_DIRECTORY}, which must be set: the directory must not be shared
+ * with other users, and its access is restricted to its owner. The cache is also configured using
+ * {@link ApplicationConfig#MAPPED_BROADCASTERCACHE_SEGMENT_SIZE},
+ * {@link ApplicationConfig#MAPPED_BROADCASTERCACHE_MAX_BYTES} and
+ * {@link ApplicationConfig#MAPPED_BROADCASTERCACHE_MAX_TIME}.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class MappedBroadcasterCache implements BroadcasterCache, CacheExpiry.Expirable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedBroadcasterCache.class);
+
+    private final ConcurrentHashMap<String, MappedLog> logs = new ConcurrentHashMap<String, MappedLog>();
+    protected final List<BroadcasterCacheInspector> inspectors = new LinkedList<BroadcasterCacheInspector>();
+    protected CacheExpiry expiry;
+    private File directory;
+    private int segmentSize = 16 * 1024 * 1024;
+    private long maxBytes = 256 * 1024 * 1024;
+    private long maxCacheTime = TimeUnit.MINUTES.toMillis(2);
+    private long invalidateCacheInterval = TimeUnit.MINUTES.toMillis(1);
+    private boolean unmap;
+
+    @Override
+    public void configure(BroadcasterConfig config) {
+        AtmosphereConfig c = config.getAtmosphereConfig();
+        expiry = CacheExpiry.get(c);
+
+        String s = c.getInitParameter(ApplicationConfig.MAPPED_BROADCASTERCACHE_DIRECTORY);
+        if (s != null) {
+            directory = new File(s);
+        }
+
+        s = c.getInitParameter(ApplicationConfig.MAPPED_BROADCASTERCACHE_SEGMENT_SIZE);
+        if (s != null) {
+            segmentSize = Integer.valueOf(s);
+        }
+
+        s = c.getInitParameter(ApplicationConfig.MAPPED_BROADCASTERCACHE_MAX_BYTES);
+        if (s != null) {
+            maxBytes = Long.valueOf(s);
+        }
+
+        s = c.getInitParameter(ApplicationConfig.MAPPED_BROADCASTERCACHE_MAX_TIME);
+        if (s != null) {
+            maxCacheTime = Long.valueOf(s);
+        }
+
+        s = c.getInitParameter(ApplicationConfig.MAPPED_BROADCASTERCACHE_UNMAP);
+        if (s != null) {
+            unmap = Boolean.parseBoolean(s);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (directory == null) {
+            logger.error("{} must be set, no message will be cached", ApplicationConfig.MAPPED_BROADCASTERCACHE_DIRECTORY);
+        }
+
+        if (expiry == null) {
+            expiry = CacheExpiry.getDefault();
+        }
+        expiry.schedule(this, System.currentTimeMillis());
+    }
+
+    /**
+     * Close the logs, invoked when the {@link org.atmosphere.cpr.Broadcaster} is destroyed. The logs stay on disk.
+     */
+    @Override
+    public void cleanup() {
+        if (expiry != null) {
+            expiry.cancel(this);
+        }
+
+        for (String id : logs.keySet()) {
+            MappedLog log = logs.remove(id);
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        cleanup();
+    }
+
+    @Override
+    public long expire(long now) {
+        long time = now - maxCacheTime;
+        for (Map.Entry<String, MappedLog> e : logs.entrySet()) {
+            MappedLog log = e.getValue();
+            log.retain(maxBytes, time);
+            log.removeIdleClients(time);
+
+            // Its messages have expired, release the mapping until the log is used again. A message appended to the
+            // log meanwhile is appended again to a reopened log.
+            if (log.lastAccess() < time) {
+                synchronized (logs) {
+                    if (log.lastAccess() < time && logs.remove(e.getKey(), log)) {
+                        logger.trace("Closing the idle log of Broadcaster {}", e.getKey());
+                        log.close();
+                    }
+                }
+            }
+        }
+        return logs.isEmpty() ? -1 : now + invalidateCacheInterval;
+    }
+
+    @Override
+    public CacheMessage addToCache(String broadcasterId, AtmosphereResource r, BroadcastMessage e) {
+        if (directory == null || !inspect(e)) return null;
+
+        long now = System.currentTimeMillis();
+        try {
+            String clientId = r == null ? null : r.uuid();
+            MappedLog log = log(broadcasterId);
+            long next;
+            try {
+                next = log.append(e.message, clientId, now);
+            } catch (IOException ex) {
+                // Closed by expire() meanwhile
+                if (!log.isClosed()) throw ex;
+                next = log(broadcasterId).append(e.message, clientId, now);
+            }
+            if (expiry != null) {
+                expiry.schedule(this, now + invalidateCacheInterval);
+            }
+            logger.trace("Caching message {} for Broadcaster {}", e.message, broadcasterId);
+            return new MappedMessage(e.id, now, e.message, next);
+        } catch (IOException ex) {
+            logger.warn("Unable to cache message {} for Broadcaster {}", e.message, broadcasterId, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public List<Object> retrieveFromCache(String broadcasterId, AtmosphereResource r) {
+        if (r == null) {
+            throw new IllegalArgumentException("AtmosphereResource can't be null");
+        }
+
+        if (directory == null) return Collections.emptyList();
+
+        MappedLog log;
+        try {
+            log = log(broadcasterId);
+        } catch (IOException ex) {
+            logger.warn("Unable to open the cache of Broadcaster {}", broadcasterId, ex);
+            return Collections.emptyList();
+        }
+
+        // Only used when the server doesn't know the client, as after a restart.
+        long from = -1;
+        String cacheHeader = r.getRequest().getHeader(X_CACHE_DATE);
+        if (cacheHeader != null && !cacheHeader.isEmpty()) {
+            try {
+                from = Long.valueOf(cacheHeader);
+            } catch (NumberFormatException ex) {
+                logger.trace("Invalid {} header {}", X_CACHE_DATE, cacheHeader);
+            }
+        }
+
+        long end = log.end();
+        List<Object> result = log.retrieve(r.uuid(), from, System.currentTimeMillis() - maxCacheTime);
+        if (log.isClosed()) {
+            // Closed by expire() meanwhile
+            try {
+                log = log(broadcasterId);
+            } catch (IOException ex) {
+                logger.warn("Unable to open the cache of Broadcaster {}", broadcasterId, ex);
+                return Collections.emptyList();
+            }
+            end = log.end();
+            result = log.retrieve(r.uuid(), from, System.currentTimeMillis() - maxCacheTime);
+        }
+        header(r, end);
+        logger.trace("Retrieved messages {}", result);
+        return result;
+    }
+
+    @Override
+    public void clearCache(String broadcasterId, AtmosphereResource r, CacheMessage cache) {
+        if (r == null || cache == null || !MappedMessage.class.isAssignableFrom(cache.getClass())) return;
+
+        MappedLog log = logs.get(broadcasterId);
+        if (log == null) return;
+
+        // The message has been delivered, the cursor moves after it unless a previous message is still pending.
+        long cursor = log.delivered(r.uuid(), MappedMessage.class.cast(cache).next);
+        if (cursor >= 0) {
+            header(r, cursor);
+        }
+    }
+
+    // Send the cursor to the client, when the headers haven't been sent yet.
+    private void header(AtmosphereResource r, long cursor) {
+        try {
+            r.getResponse().setHeader(X_CACHE_DATE, String.valueOf(cursor));
+        } catch (Exception ex) {
+            logger.trace("Unable to set the {} header for {}", X_CACHE_DATE, r.uuid(), ex);
+        }
+    }
+
+    @Override
+    public void excludeFromCache(String broadcasterId, AtmosphereResource r) {
+        logger.trace("Not supported");
+    }
+
+    @Override
+    public BroadcasterCache inspector(BroadcasterCacheInspector b) {
+        inspectors.add(b);
+        return this;
+    }
+
+    protected boolean inspect(BroadcastMessage m) {
+        for (BroadcasterCacheInspector b : inspectors) {
+            if (!b.inspect(m)) return false;
+        }
+        return true;
+    }
+
+    private MappedLog log(String broadcasterId) throws IOException {
+        MappedLog log = logs.get(broadcasterId);
+        if (log == null || log.isClosed()) {
+            synchronized (logs) {
+                log = logs.get(broadcasterId);
+                if (log == null || log.isClosed()) {
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("Unable to create " + directory);
+                    }
+                    MappedLog.restrict(directory);
+
+                    log = new MappedLog(new File(directory, encode(broadcasterId)), segmentSize).setUnmap(unmap);
+                    logs.put(broadcasterId, log);
+                }
+            }
+        }
+        return log;
+    }
+
+    private static String encode(String broadcasterId) {
+        try {
+            return URLEncoder.encode(broadcasterId, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Set the directory of the logs. The directory must not be shared with other users.
+     *
+     * @param directory a directory, created if needed
+     * @return this
+     */
+    public MappedBroadcasterCache setDirectory(File directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * Set the size of a segment.
+     *
+     * @param segmentSize the size, in bytes
+     * @return this
+     */
+    public MappedBroadcasterCache setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum size of the log of a {@link org.atmosphere.cpr.Broadcaster}.
+     *
+     * @param maxBytes the size, in bytes
+     * @return this
+     */
+    public MappedBroadcasterCache setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum time a message stays alive in the cache.
+     *
+     * @param maxCacheTime the maximum time in milliseconds.
+     * @return this
+     */
+    public MappedBroadcasterCache setMaxCacheTime(long maxCacheTime) {
+        this.maxCacheTime = maxCacheTime;
+        return this;
+    }
+
+    /**
+     * Release the mapping of a closed or expired segment right away. See
+     * {@link ApplicationConfig#MAPPED_BROADCASTERCACHE_UNMAP}
+     *
+     * @param unmap true to release the mappings right away
+     * @return this
+     */
+    public MappedBroadcasterCache setUnmap(boolean unmap) {
+        this.unmap = unmap;
+        return this;
+    }
+
+    /**
+     * Set the delay between cache purges.
+     *
+     * @param invalidateCacheInterval the purge interval in milliseconds
+     * @return this
+     */
+    public MappedBroadcasterCache setInvalidateCacheInterval(long invalidateCacheInterval) {
+        this.invalidateCacheInterval = invalidateCacheInterval;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getName();
+    }
+
+    private final static class MappedMessage extends CacheMessage {
+        private final long next;
+
+        MappedMessage(String id, long now, Object message, long next) {
+            super(id, now, message);
+            this.next = next;
+        }
+    }
+}
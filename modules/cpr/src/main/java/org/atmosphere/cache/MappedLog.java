@@ -0,0 +1,592 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append only log of messages stored in memory-mapped segment files. Every message is stored at an offset, its
+ * position in the log, and the segments are named after the offset of their first message, so the log survives a
+ * restart of the JVM: the segments found in the directory are mapped again and their messages are available.
+ * <p/>
+ * Messages are read straight from the mapped segments, without intermediate buffers. Only the offset of every message
+ * is kept in memory. As with the {@link MessageLog}, every client owns a cursor: the offset of the next message it
+ * hasn't received yet.
+ * <p/>
+ * Only String and byte[] messages are stored, so reading a segment never instantiates an arbitrary class. The
+ * directory is only accessible by its owner, and is created if needed.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class MappedLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedLog.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".log";
+    private static final byte STRING = 0;
+    private static final byte BYTES = 1;
+    // length, time, type and client ID length
+    private static final int HEADER = 4 + 8 + 1 + 2;
+
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long end;
+    private boolean closed;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile boolean unmap;
+
+    /**
+     * Open a log, mapping the segments already stored in the directory.
+     *
+     * @param directory   the directory of the segments
+     * @param segmentSize the size of a segment, in bytes
+     * @throws IOException if the directory can't be created, or its access can't be restricted to its owner
+     */
+    public MappedLog(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        restrict(directory);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.endsWith(SUFFIX)) continue;
+
+                try {
+                    long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                    segments.put(base, new Segment(base, f, (int) f.length()));
+                } catch (NumberFormatException ex) {
+                    logger.warn("Ignoring {}", f);
+                }
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            end = last.base + last.size;
+            logger.debug("Recovered {} segments from {}, ending at offset {}", segments.size(), directory, end);
+        }
+    }
+
+    /**
+     * Restrict the access of a file to its owner.
+     *
+     * @param f a file or directory
+     * @throws IOException if the permissions can't be changed, as when the file isn't owned by this process
+     */
+    static void restrict(File f) throws IOException {
+        boolean restricted = f.setReadable(false, false) && f.setReadable(true, true)
+                && f.setWritable(false, false) && f.setWritable(true, true);
+        if (f.isDirectory()) {
+            restricted = restricted && f.setExecutable(false, false) && f.setExecutable(true, true);
+        }
+        if (!restricted) {
+            throw new IOException("Unable to restrict the access of " + f + " to its owner");
+        }
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param message  a String or byte[] message
+     * @param clientId the client the message is for, or null for all the clients
+     * @param time     the time of the message, in milliseconds
+     * @return the offset following the message
+     * @throws IOException if the message isn't a String or byte[], or the segment can't be created
+     */
+    public long append(Object message, String clientId, long time) throws IOException {
+        byte type;
+        byte[] payload;
+        if (message instanceof String) {
+            type = STRING;
+            payload = ((String) message).getBytes(UTF8);
+        } else if (message instanceof byte[]) {
+            type = BYTES;
+            payload = (byte[]) message;
+        } else {
+            throw new NotSerializableException(message.getClass().getName());
+        }
+
+        byte[] id = clientId == null ? new byte[0] : clientId.getBytes(UTF8);
+        int length = HEADER + id.length + payload.length;
+        lastAccess = System.currentTimeMillis();
+
+        long offset;
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                throw new IOException("The log of " + directory + " is closed");
+            }
+
+            Segment s = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (s == null || s.buffer.capacity() - s.size < length) {
+                s = new Segment(end, new File(directory, String.format("%020d", end) + SUFFIX), Math.max(segmentSize, length));
+                segments.put(s.base, s);
+            }
+
+            int p = s.size;
+            ByteBuffer b = s.buffer.duplicate();
+            b.position(p + 4);
+            b.putLong(time);
+            b.put(type);
+            b.putShort((short) id.length);
+            b.put(id);
+            b.put(payload);
+            // Written last, so a message partially written when the JVM died is never read.
+            b.putInt(p, length);
+
+            s.add(p, length, time);
+            offset = s.base + p;
+            end = s.base + s.size;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        if (clientId != null && !cursors.containsKey(clientId)) {
+            cursors.putIfAbsent(clientId, new Cursor(offset));
+        }
+        return offset + length;
+    }
+
+    /**
+     * Read the messages stored between two offsets.
+     *
+     * @param from     the offset of the first message
+     * @param to       the offset following the last message, see {@link #end()}
+     * @param clientId the client reading the messages
+     * @param time     the time, in milliseconds, before which messages are ignored
+     * @return the messages
+     */
+    public List<Object> read(long from, long to, String clientId, long time) {
+        List<Object> l = new ArrayList<Object>();
+        byte[] id = clientId == null ? new byte[0] : clientId.getBytes(UTF8);
+
+        lock.readLock().lock();
+        try {
+            Long first = segments.floorKey(from);
+            Map<Long, Segment> m = first == null ? segments : segments.tailMap(first);
+            for (Segment s : m.values()) {
+                int i = from <= s.base ? 0 : s.indexOf((int) (from - s.base));
+                for (; i < s.records && s.base + s.positions[i] < to; i++) {
+                    Object o = s.read(s.positions[i], id, time);
+                    if (o != null) {
+                        l.add(o);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return l;
+    }
+
+    /**
+     * Return the messages after the cursor of a client and move the cursor to the end of the log. A client without
+     * cursor starts at the offset it sent, or only receives the messages appended after.
+     *
+     * @param clientId the client
+     * @param from     the offset of the next message the client expects, or -1
+     * @param time     the time, in milliseconds, before which messages are ignored
+     * @return the messages
+     */
+    public List<Object> retrieve(String clientId, long from, long time) {
+        lastAccess = System.currentTimeMillis();
+        long to = end();
+
+        Cursor c = cursors.get(clientId);
+        if (c == null) {
+            c = new Cursor(from >= 0 && from < to ? from : to);
+            Cursor previous = cursors.putIfAbsent(clientId, c);
+            if (previous != null) {
+                c = previous;
+            }
+        }
+
+        synchronized (c) {
+            c.lastSeen = lastAccess;
+            List<Object> l = c.next < to ? read(c.next, to, clientId, time) : Collections.emptyList();
+            c.next = Math.max(c.next, to);
+            c.delivered.clear();
+            return l;
+        }
+    }
+
+    /**
+     * Mark a message as received by a client. The cursor of the client only moves past the messages received without
+     * gap, so a message still pending is retrieved again on the next {@link #retrieve(String, long, long)}.
+     *
+     * @param clientId the client
+     * @param next     the offset following the message, as returned by {@link #append(Object, String, long)}
+     * @return the cursor of the client, or -1 if the client has no cursor
+     */
+    public long delivered(String clientId, long next) {
+        Cursor c = cursors.get(clientId);
+        if (c == null) return -1;
+
+        byte[] id = clientId.getBytes(UTF8);
+        synchronized (c) {
+            c.lastSeen = System.currentTimeMillis();
+            if (next > c.next) {
+                c.delivered.add(next);
+                advance(c, id);
+            }
+            return c.next;
+        }
+    }
+
+    // Move a cursor past the messages received by the client and the messages for other clients.
+    private void advance(Cursor c, byte[] id) {
+        lock.readLock().lock();
+        try {
+            while (c.next < end) {
+                Map.Entry<Long, Segment> e = segments.floorEntry(c.next);
+                if (e == null) {
+                    // Deleted by retain(), or closed.
+                    c.next = segments.isEmpty() ? end : segments.firstKey();
+                    continue;
+                }
+
+                Segment s = e.getValue();
+                int p = (int) (c.next - s.base);
+                if (p >= s.size) {
+                    Long k = segments.higherKey(s.base);
+                    c.next = k == null ? end : k;
+                    continue;
+                }
+
+                long following = c.next + s.buffer.getInt(p);
+                if (c.delivered.remove(following) || !s.isFor(p, id)) {
+                    c.next = following;
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        c.delivered.headSet(c.next, true).clear();
+    }
+
+    /**
+     * Remove the cursors of the clients that didn't retrieve or receive a message since a time.
+     *
+     * @param time a time, in milliseconds
+     * @return the number of removed cursors
+     */
+    public int removeIdleClients(long time) {
+        int removed = 0;
+        Iterator<Cursor> i = cursors.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().lastSeen < time) {
+                i.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Return the number of clients with a cursor.
+     *
+     * @return the number of clients
+     */
+    public int clients() {
+        return cursors.size();
+    }
+
+    /**
+     * Return the last time, in milliseconds, a message was appended or retrieved.
+     *
+     * @return the last time the log was used
+     */
+    public long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Delete the oldest segments, until the log is smaller than maxBytes and its oldest segment has a message more
+     * recent than the time. The last segment is never deleted.
+     *
+     * @param maxBytes the maximum size of the log, in bytes
+     * @param time     a time, in milliseconds
+     * @return the number of deleted segments
+     */
+    public int retain(long maxBytes, long time) {
+        lock.writeLock().lock();
+        try {
+            int deleted = 0;
+            while (segments.size() > 1) {
+                Segment s = segments.firstEntry().getValue();
+                if (end - s.base <= maxBytes && s.lastTime >= time) {
+                    break;
+                }
+
+                segments.remove(s.base);
+                // Released first when enabled, a mapped file can't be deleted on every platform.
+                unmap(s.buffer);
+                if (!s.file.delete()) {
+                    logger.warn("Unable to delete {}", s.file);
+                }
+                deleted++;
+            }
+            return deleted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the offset following the last message.
+     *
+     * @return the offset following the last message
+     */
+    public long end() {
+        lock.readLock().lock();
+        try {
+            return end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flush the segments to the disk.
+     */
+    public void force() {
+        lock.readLock().lock();
+        try {
+            for (Segment s : segments.values()) {
+                s.buffer.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Flush the segments to the disk and release their mapping. The segments stay on disk, and a closed log can't be
+     * used anymore.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+
+            closed = true;
+            for (Segment s : segments.values()) {
+                s.buffer.force();
+                unmap(s.buffer);
+            }
+            segments.clear();
+            cursors.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return true if the log has been closed.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        lock.readLock().lock();
+        try {
+            return closed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Release the mapping of the closed and deleted segments right away, instead of when they are garbage collected.
+     * This relies on internal JDK APIs, so it is disabled by default and disabled again when they aren't available.
+     *
+     * @param unmap true to release the mappings right away
+     * @return this
+     */
+    public MappedLog setUnmap(boolean unmap) {
+        this.unmap = unmap;
+        return this;
+    }
+
+    // Release the mapping now instead of when the buffer is garbage collected. The buffer must not be used anymore.
+    private void unmap(MappedByteBuffer buffer) {
+        if (!unmap) return;
+
+        try {
+            // Java 9 and later
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            invokeCleaner.invoke(f.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException ex) {
+            // Java 8 and before
+        } catch (Throwable t) {
+            unmapFailed(t);
+            return;
+        }
+
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object o = cleaner.invoke(buffer);
+            if (o != null) {
+                o.getClass().getMethod("clean").invoke(o);
+            }
+        } catch (Throwable t) {
+            unmapFailed(t);
+        }
+    }
+
+    private void unmapFailed(Throwable t) {
+        unmap = false;
+        logger.warn("Unable to release the mapped segments of {}, they are released when garbage collected", directory, t);
+    }
+
+    private final static class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+        int[] positions = new int[64];
+        int records;
+        int size;
+        long lastTime;
+
+        Segment(long base, File file, int capacity) throws IOException {
+            this.base = base;
+            this.file = file;
+
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                restrict(file);
+                // The mapping stays valid once the file is closed.
+                buffer = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                f.close();
+            }
+
+            // Index the messages already stored.
+            int p = 0;
+            while (p + HEADER <= capacity) {
+                int length = buffer.getInt(p);
+                if (length < HEADER || p + length > capacity) break;
+
+                add(p, length, buffer.getLong(p + 4));
+                p += length;
+            }
+        }
+
+        void add(int position, int length, long time) {
+            if (records == positions.length) {
+                positions = Arrays.copyOf(positions, records * 2);
+            }
+            positions[records++] = position;
+            size = position + length;
+            lastTime = time;
+        }
+
+        // The index of the first message at or after the position.
+        int indexOf(int position) {
+            int i = Arrays.binarySearch(positions, 0, records, position);
+            return i >= 0 ? i : -(i + 1);
+        }
+
+        // True if the message at the position is for all the clients or for that client.
+        boolean isFor(int p, byte[] clientId) {
+            int idLength = buffer.getShort(p + 4 + 8 + 1);
+            if (idLength == 0) return true;
+            if (idLength != clientId.length) return false;
+
+            for (int i = 0; i < idLength; i++) {
+                if (buffer.get(p + HEADER + i) != clientId[i]) return false;
+            }
+            return true;
+        }
+
+        Object read(int p, byte[] clientId, long time) {
+            ByteBuffer b = buffer.duplicate();
+            b.position(p);
+            int length = b.getInt();
+            if (b.getLong() < time || !isFor(p, clientId)) {
+                return null;
+            }
+
+            byte type = b.get();
+            b.position(b.position() + 2 + b.getShort(p + 4 + 8 + 1));
+            b.limit(p + length);
+            ByteBuffer payload = b.slice();
+
+            switch (type) {
+                case STRING:
+                    return UTF8.decode(payload).toString();
+                case BYTES:
+                    byte[] bytes = new byte[payload.remaining()];
+                    payload.get(bytes);
+                    return bytes;
+                default:
+                    // Serialized objects aren't read anymore.
+                    logger.trace("Ignoring message of type {} at offset {} of {}", type, base + p, file);
+                    return null;
+            }
+        }
+    }
+
+    private final static class Cursor {
+        long next;
+        // The offsets following the messages received after the cursor.
+        final TreeSet<Long> delivered = new TreeSet<Long>();
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Cursor(long next) {
+            this.next = next;
+        }
+    }
+}
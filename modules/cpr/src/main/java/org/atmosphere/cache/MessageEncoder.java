@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import org.atmosphere.cpr.ApplicationConfig;
+import org.atmosphere.cpr.AtmosphereConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encode the messages stored by a {@link org.atmosphere.cpr.BroadcasterCache}. A String message is stored as its UTF-8
+ * bytes, which takes half the memory of the String, and is decoded back to the same String when retrieved, so the
+ * filters and handlers of a replay see the message that was broadcast. When a compression threshold is set, the bytes
+ * of the larger String and byte[] messages are deflated, and inflated when retrieved.
+ * <p/>
+ * Encoding only reduces the heap used by the cached messages. It doesn't save any work when replaying: every retrieval
+ * decodes, and possibly inflates, the messages again, so a reconnection costs more CPU than without encoding.
+ * <p/>
+ * Other messages are stored as they are. See {@link ApplicationConfig#BROADCASTERCACHE_ENCODE_MESSAGE}
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class MessageEncoder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int compressionThreshold;
+
+    /**
+     * Create an encoder.
+     *
+     * @param compressionThreshold the size, in bytes, from which messages are deflated, or -1 to never deflate
+     */
+    public MessageEncoder(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Create the encoder configured using {@link ApplicationConfig#BROADCASTERCACHE_ENCODE_MESSAGE} and
+     * {@link ApplicationConfig#BROADCASTERCACHE_COMPRESSION_THRESHOLD}.
+     *
+     * @param config the {@link AtmosphereConfig}
+     * @return a {@link MessageEncoder}, or null if messages are stored as they are
+     */
+    public static MessageEncoder fromConfig(AtmosphereConfig config) {
+        if (!Boolean.parseBoolean(config.getInitParameter(ApplicationConfig.BROADCASTERCACHE_ENCODE_MESSAGE))) {
+            return null;
+        }
+
+        int compressionThreshold = -1;
+        String s = config.getInitParameter(ApplicationConfig.BROADCASTERCACHE_COMPRESSION_THRESHOLD);
+        if (s != null) {
+            compressionThreshold = Integer.valueOf(s);
+        }
+        return new MessageEncoder(compressionThreshold);
+    }
+
+    /**
+     * Return the form of a message to store.
+     *
+     * @param message a message
+     * @return a {@link Text} or {@link Compressed} message, or the message itself
+     */
+    public Object encode(Object message) {
+        byte[] b;
+        boolean text = message instanceof String;
+        if (text) {
+            b = ((String) message).getBytes(UTF8);
+        } else if (message instanceof byte[]) {
+            b = (byte[]) message;
+        } else {
+            return message;
+        }
+
+        if (compressionThreshold >= 0 && b.length >= compressionThreshold) {
+            byte[] deflated = deflate(b);
+            // Unless incompressible
+            if (deflated.length < b.length) {
+                return new Compressed(deflated, b.length, text);
+            }
+        }
+        return text ? new Text(b) : b;
+    }
+
+    /**
+     * Return the message to deliver from its stored form.
+     *
+     * @param stored the value returned by {@link #encode(Object)}
+     * @return the message
+     */
+    public Object decode(Object stored) {
+        if (stored == null) {
+            return null;
+        } else if (Text.class.isAssignableFrom(stored.getClass())) {
+            return new String(Text.class.cast(stored).bytes, UTF8);
+        } else if (Compressed.class.isAssignableFrom(stored.getClass())) {
+            Compressed c = Compressed.class.cast(stored);
+            byte[] b = inflate(c);
+            return c.text ? new String(b, UTF8) : b;
+        }
+        return stored;
+    }
+
+    /**
+     * Replace the stored form of every message of a list by the message to deliver.
+     *
+     * @param l the messages
+     * @return the list
+     */
+    public List<Object> decode(List<Object> l) {
+        ListIterator<Object> i = l.listIterator();
+        while (i.hasNext()) {
+            Object o = i.next();
+            Object m = decode(o);
+            if (m != o) {
+                i.set(m);
+            }
+        }
+        return l;
+    }
+
+    private static byte[] deflate(byte[] b) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(b);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(b.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(Compressed c) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(c.bytes);
+
+            byte[] b = new byte[c.length];
+            int n = 0;
+            while (n < b.length && !inflater.finished() && !inflater.needsInput()) {
+                n += inflater.inflate(b, n, b.length - n);
+            }
+            return b;
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Corrupted cached message", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The UTF-8 bytes of a String message.
+     */
+    public final static class Text {
+
+        private final byte[] bytes;
+
+        Text(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Return the size of the UTF-8 bytes.
+         *
+         * @return the size in bytes
+         */
+        public int size() {
+            return bytes.length;
+        }
+
+        @Override
+        public String toString() {
+            return "Text{size=" + bytes.length + '}';
+        }
+    }
+
+    /**
+     * The deflated bytes of a message.
+     */
+    public final static class Compressed {
+
+        private final byte[] bytes;
+        private final int length;
+        private final boolean text;
+
+        Compressed(byte[] bytes, int length, boolean text) {
+            this.bytes = bytes;
+            this.length = length;
+            this.text = text;
+        }
+
+        /**
+         * Return the size of the deflated bytes.
+         *
+         * @return the size in bytes
+         */
+        public int size() {
+            return bytes.length;
+        }
+
+        @Override
+        public String toString() {
+            return "Compressed{size=" + bytes.length + ", length=" + length + '}';
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append only log of cached messages, stored once in a ring of fixed capacity. Every message gets an offset, one
+ * more than the previous one. Instead of a copy of the messages, every client only owns a cursor: the offset of the
+ * next message it hasn't received yet.
+ * <p/>
+ * When the ring is full, appending a message expires the oldest one. Messages can also be expired by age using
+ * {@link #expire(long)}.
+ * <p/>
+ * Offsets are only meaningful within the {@link #epoch()} of the log, which changes whenever the log is recreated.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class MessageLog {
+
+    private final Message[] ring;
+    private final String epoch = UUID.randomUUID().toString();
+    private final ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+    // The offset of the oldest message.
+    private long head;
+    // The offset of the next message.
+    private long tail;
+
+    public MessageLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        ring = new Message[capacity];
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param message  the message
+     * @param clientId the client the message is cached for, or null for all the clients
+     * @param now      the time of the message, in milliseconds
+     * @return the {@link Message}
+     */
+    public synchronized Message append(Object message, String clientId, long now) {
+        if (tail - head == ring.length) {
+            ring[index(head++)] = null;
+        }
+
+        Message m = new Message(epoch, tail, clientId, now, message);
+        ring[index(tail++)] = m;
+
+        if (clientId != null && !cursors.containsKey(clientId)) {
+            cursors.put(clientId, new Cursor(m.offset));
+        }
+        return m;
+    }
+
+    /**
+     * Return the messages after the cursor of a client and move the cursor to the end of the log. A client without
+     * cursor gets one, and only receives the messages appended after.
+     *
+     * @param clientId the client
+     * @return the messages
+     */
+    public synchronized List<Object> retrieve(String clientId) {
+        Cursor c = cursors.get(clientId);
+        if (c == null) {
+            cursors.put(clientId, new Cursor(tail));
+            return Collections.emptyList();
+        }
+
+        long from = Math.max(c.next.get(), head);
+        long to = Math.min(c.end, tail);
+        List<Object> l = new ArrayList<Object>();
+        for (long o = from; o < to; o++) {
+            Message m = ring[index(o)];
+            if (m.clientId == null || m.clientId.equals(clientId)) {
+                l.add(m.getMessage());
+            }
+        }
+
+        c.next.set(tail);
+        c.delivered.clear();
+        c.end = Long.MAX_VALUE;
+        return l;
+    }
+
+    /**
+     * Move the cursor of a client to an offset sent by the client, then return the messages after the cursor as
+     * {@link #retrieve(String)} does. The cursor moves back when the client missed messages, and forward when it
+     * received messages not yet marked as delivered.
+     *
+     * @param clientId the client
+     * @param from     the offset of the next message the client expects, or -1 to keep the cursor
+     * @return the messages
+     */
+    public synchronized List<Object> retrieve(String clientId, long from) {
+        if (from >= 0) {
+            long next = Math.min(from, tail);
+            Cursor c = cursors.get(clientId);
+            if (c == null) {
+                cursors.put(clientId, new Cursor(next));
+            } else {
+                c.next.set(next);
+                c.delivered.clear();
+            }
+        }
+        return retrieve(clientId);
+    }
+
+    /**
+     * Mark a message as received by a client. Messages can be delivered out of order, so the cursor only moves past
+     * the messages received without gap, skipping the messages cached for other clients.
+     *
+     * @param clientId the client
+     * @param m        a {@link Message} of this log
+     * @return the cursor of the client, or -1 if the client has no cursor
+     */
+    public synchronized long delivered(String clientId, Message m) {
+        Cursor c = cursors.get(clientId);
+        if (c == null) return -1;
+
+        long next = Math.max(c.next.get(), head);
+        if (m.offset >= next) {
+            c.delivered.add(m.offset);
+            while (next < tail) {
+                Message o = ring[index(next)];
+                if (!c.delivered.remove(next) && (o.clientId == null || o.clientId.equals(clientId))) {
+                    break;
+                }
+                next++;
+            }
+            c.delivered.headSet(next).clear();
+            c.next.set(next);
+        }
+        return next;
+    }
+
+    /**
+     * Stop caching the next messages for a client, until its next {@link #retrieve(String)}.
+     *
+     * @param clientId the client
+     */
+    public synchronized void exclude(String clientId) {
+        Cursor c = cursors.get(clientId);
+        if (c != null && c.end == Long.MAX_VALUE) {
+            c.end = tail;
+        }
+    }
+
+    /**
+     * Remove the cursor of a client.
+     *
+     * @param clientId the client
+     */
+    public void remove(String clientId) {
+        cursors.remove(clientId);
+    }
+
+    /**
+     * Expire the messages older than a time.
+     *
+     * @param time a time, in milliseconds
+     * @return the number of expired messages
+     */
+    public synchronized int expire(long time) {
+        int expired = 0;
+        while (head < tail && ring[index(head)].getCreateTime() < time) {
+            ring[index(head++)] = null;
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Return the number of messages.
+     *
+     * @return the number of messages
+     */
+    public synchronized int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Return the offset of the next message.
+     *
+     * @return the offset of the next message
+     */
+    public synchronized long end() {
+        return tail;
+    }
+
+    /**
+     * Return the epoch of this log.
+     *
+     * @return the epoch
+     */
+    public String epoch() {
+        return epoch;
+    }
+
+    /**
+     * Return the number of clients with a cursor.
+     *
+     * @return the number of clients
+     */
+    public int clients() {
+        return cursors.size();
+    }
+
+    private int index(long offset) {
+        return (int) (offset % ring.length);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MessageLog{head=" + head + ", tail=" + tail + ", clients=" + cursors.size() + '}';
+    }
+
+    /**
+     * A {@link CacheMessage} stored in a {@link MessageLog}.
+     */
+    public final static class Message extends CacheMessage {
+
+        private final long offset;
+        private final String clientId;
+
+        Message(String epoch, long offset, String clientId, long now, Object message) {
+            super(epoch + ":" + offset, offset, now, message);
+            this.offset = offset;
+            this.clientId = clientId;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+    }
+
+    private final static class Cursor {
+        final AtomicLong next;
+        volatile long end = Long.MAX_VALUE;
+        // The offsets received after a gap, guarded by the log.
+        final TreeSet<Long> delivered = new TreeSet<Long>();
+
+        Cursor(long next) {
+            this.next = new AtomicLong(next);
+        }
+    }
+}
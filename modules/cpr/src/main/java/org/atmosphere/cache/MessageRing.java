@@ -0,0 +1,367 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cache;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A ring of {@link CacheMessage}s ordered by {@link CacheMessage#getCreateTime()}. The messages created after a time
+ * are found using a binary search, so retrieving k messages costs O(log n + k) whatever the size of the ring.
+ * Expiring messages only moves the head of the ring, and removing a message leaves a hole that is skipped, and
+ * reclaimed when the head moves past it or when the ring is resized.
+ * <p/>
+ * The ring grows as needed. When a maximum size is set, adding a message to a full ring drops the oldest message.
+ * This {@link List} is read only, and its iterator works on a snapshot.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class MessageRing extends AbstractList<CacheMessage> {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, CacheMessage> ids = new HashMap<String, CacheMessage>();
+    private CacheMessage[] slots = new CacheMessage[16];
+    private long[] times = new long[16];
+    // The index of the oldest slot
+    private int head;
+    // The number of slots in use, including the holes.
+    private int count;
+    // The number of messages.
+    private int size;
+    private volatile int maxSize = -1;
+
+    public MessageRing() {
+    }
+
+    /**
+     * Set the maximum number of messages.
+     *
+     * @param maxSize the maximum number of messages, or -1 for unbounded
+     * @return this
+     */
+    public MessageRing maxSize(int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Add a message, unless a message with the same ID is already stored.
+     *
+     * @param m a {@link CacheMessage}
+     * @return true if added
+     */
+    @Override
+    public boolean add(CacheMessage m) {
+        lock.writeLock().lock();
+        try {
+            if (ids.containsKey(m.getId())) {
+                return false;
+            }
+
+            while (maxSize > 0 && size >= maxSize) {
+                removeHead();
+            }
+
+            if (count == slots.length) {
+                resize();
+            }
+
+            // Messages are almost always added in order, so this loop rarely moves anything.
+            long t = m.getCreateTime();
+            int i = count;
+            while (i > 0 && times[slot(i - 1)] > t) {
+                slots[slot(i)] = slots[slot(i - 1)];
+                times[slot(i)] = times[slot(i - 1)];
+                i--;
+            }
+            slots[slot(i)] = m;
+            times[slot(i)] = t;
+            count++;
+            size++;
+            ids.put(m.getId(), m);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the messages created after a time, in creation order.
+     *
+     * @param time a time, using the unit of {@link CacheMessage#getCreateTime()}
+     * @return the messages
+     */
+    public List<Object> after(long time) {
+        lock.readLock().lock();
+        try {
+            List<Object> l = new ArrayList<Object>();
+            for (int i = firstAfter(time); i < count; i++) {
+                CacheMessage m = slots[slot(i)];
+                if (m != null) {
+                    l.add(m.getMessage());
+                }
+            }
+            return l;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a message.
+     *
+     * @param o a {@link CacheMessage}
+     * @return true if removed
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null || !CacheMessage.class.isAssignableFrom(o.getClass())) {
+            return false;
+        }
+
+        CacheMessage m = CacheMessage.class.cast(o);
+        lock.writeLock().lock();
+        try {
+            if (ids.remove(m.getId()) == null) {
+                return false;
+            }
+
+            long t = m.getCreateTime();
+            for (int i = firstAfter(t - 1); i < count && times[slot(i)] == t; i++) {
+                CacheMessage c = slots[slot(i)];
+                if (c != null && c.getId().equals(m.getId())) {
+                    slots[slot(i)] = null;
+                    size--;
+                    break;
+                }
+            }
+            trimHead();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return true if a message with the ID is stored.
+     *
+     * @param id a message ID
+     * @return true if stored
+     */
+    public boolean containsId(String id) {
+        lock.readLock().lock();
+        try {
+            return ids.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the message with the ID.
+     *
+     * @param id a message ID
+     * @return true if removed
+     */
+    public boolean removeId(String id) {
+        CacheMessage m;
+        lock.readLock().lock();
+        try {
+            m = ids.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return m != null && remove(m);
+    }
+
+    /**
+     * Return the IDs of the stored messages.
+     *
+     * @return a snapshot of the IDs
+     */
+    public Set<String> ids() {
+        lock.readLock().lock();
+        try {
+            return new HashSet<String>(ids.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the messages created before a time.
+     *
+     * @param time a time, using the unit of {@link CacheMessage#getCreateTime()}
+     * @return the number of removed messages
+     */
+    public int expire(long time) {
+        lock.writeLock().lock();
+        try {
+            int expired = 0;
+            while (count > 0 && times[head] < time) {
+                if (slots[head] != null) {
+                    expired++;
+                }
+                removeHead();
+            }
+            return expired;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the creation time of the oldest message.
+     *
+     * @return the creation time, or null if the ring is empty
+     */
+    public Long oldestTime() {
+        lock.readLock().lock();
+        try {
+            return count == 0 ? null : times[head];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CacheMessage get(int index) {
+        lock.readLock().lock();
+        try {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            for (int i = 0; i < count; i++) {
+                CacheMessage m = slots[slot(i)];
+                if (m != null && index-- == 0) {
+                    return m;
+                }
+            }
+            throw new IllegalStateException();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<CacheMessage> iterator() {
+        return snapshot().iterator();
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            slots = new CacheMessage[16];
+            times = new long[16];
+            ids.clear();
+            head = count = size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<CacheMessage> snapshot() {
+        lock.readLock().lock();
+        try {
+            List<CacheMessage> l = new ArrayList<CacheMessage>(size);
+            for (int i = 0; i < count; i++) {
+                CacheMessage m = slots[slot(i)];
+                if (m != null) {
+                    l.add(m);
+                }
+            }
+            return l;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int slot(int i) {
+        return (head + i) & (slots.length - 1);
+    }
+
+    // The position of the first slot created after the time.
+    private int firstAfter(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[slot(mid)] > time) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private void removeHead() {
+        CacheMessage m = slots[head];
+        if (m != null) {
+            ids.remove(m.getId());
+            size--;
+        }
+        slots[head] = null;
+        head = (head + 1) & (slots.length - 1);
+        count--;
+        trimHead();
+    }
+
+    private void trimHead() {
+        while (count > 0 && slots[head] == null) {
+            head = (head + 1) & (slots.length - 1);
+            count--;
+        }
+    }
+
+    // Double the ring, unless reclaiming the holes frees enough slots.
+    private void resize() {
+        int capacity = size <= count / 2 ? slots.length : slots.length * 2;
+        CacheMessage[] s = new CacheMessage[capacity];
+        long[] t = new long[capacity];
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            CacheMessage m = slots[slot(i)];
+            if (m != null) {
+                s[j] = m;
+                t[j++] = times[slot(i)];
+            }
+        }
+        slots = s;
+        times = t;
+        head = 0;
+        count = j;
+    }
+}
@@ -15,121 +15,430 @@
  */
 package org.atmosphere.cache;
 
+import org.atmosphere.cpr.ApplicationConfig;
 import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.AtmosphereRequest;
 import org.atmosphere.cpr.AtmosphereResourceEvent;
+import org.atmosphere.cpr.AtmosphereResponse;
 import org.atmosphere.cpr.BroadcasterCache;
 import org.atmosphere.cpr.BroadcasterConfig;
-import org.atmosphere.util.ExecutorsFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.atmosphere.cpr.HeaderConfig.X_CACHE_DATE;
 
 /**
  * An improved {@link BroadcasterCache} implementation that is based on the unique identifier (UUID) that all
  * {@link AtmosphereResource}s have.
+ * <p/>
+ * By default a message is copied in the {@link ClientQueue} of every active client. When
+ * {@link ApplicationConfig#UUIDBROADCASTERCACHE_SHARED_LOG} is set, a message is instead appended once to a
+ * {@link MessageLog} per {@link org.atmosphere.cpr.Broadcaster} and every client only owns a cursor in that log, so
+ * caching a message no longer depends on the number of clients. In that mode {@link #messages()} is empty.
+ * <p/>
+ * Every cached message gets a sequence number, one more than the previous one: the offset of the message in its
+ * {@link MessageLog}, or a counter of this cache. The sequence number of the next message a client expects is sent
+ * to the client as its cursor using the X-Cache-Date header, which the client sends back when it reconnects. The
+ * messages before that cursor are not delivered again. The cursor only moves past the messages delivered without
+ * gap, and is sent as <code>broadcasterId:epoch:sequence</code>, where the epoch identifies the {@link MessageLog} or
+ * this cache: a cursor of another {@link org.atmosphere.cpr.Broadcaster}, or from before a restart, is ignored and
+ * every cached message is delivered.
  *
  * @author Paul Khodchenkov
  * @author Jeanfrancois Arcand
  */
-public class UUIDBroadcasterCache implements BroadcasterCache {
+public class UUIDBroadcasterCache implements BroadcasterCache, CacheExpiry.Expirable {
 
     private final static Logger logger = LoggerFactory.getLogger(UUIDBroadcasterCache.class);
 
-    private final Map<String, ClientQueue> messages = new ConcurrentHashMap<String, ClientQueue>();
+    private final ConcurrentHashMap<String, ClientQueue> messages = new ConcurrentHashMap<String, ClientQueue>();
     private final Map<String, Long> activeClients = new ConcurrentHashMap<String, Long>();
     protected final List<BroadcasterCacheInspector> inspectors = new LinkedList<BroadcasterCacheInspector>();
-    private ScheduledFuture scheduledFuture;
-    protected ScheduledExecutorService taskScheduler;
+    protected CacheExpiry expiry;
     private long clientIdleTime = TimeUnit.SECONDS.toMillis(60); // 1 minutes
     private long invalidateCacheInterval = TimeUnit.SECONDS.toMillis(30); // 30 seconds
-    private boolean shared = true;
+    private boolean sharedLog;
+    private int logCapacity = 1024;
+    private int maxQueueSize = -1;
+    private final ConcurrentHashMap<String, MessageLog> logs = new ConcurrentHashMap<String, MessageLog>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final String epoch = UUID.randomUUID().toString();
+    private MessageEncoder encoder;
     protected final List<Object> emptyList = Collections.<Object>emptyList();
 
+    /**
+     * The messages cached for a client, in insertion order and indexed by message ID. Adding and removing a message
+     * are constant time operations, and the queue is safe to use from the broadcast and the write threads. When the
+     * queue is bounded, adding a message to a full queue drops the oldest one.
+     */
     public final static class ClientQueue {
 
-        private final LinkedList<CacheMessage> queue = new LinkedList<CacheMessage>();
-        private final Set<String> ids = new HashSet<String>();
+        private final LinkedHashMap<String, CacheMessage> queue;
+        // The IDs of the queued messages by sequence number. Entries of messages removed from the queue by other means
+        // than remove(CacheMessage) are dropped when they reach the head.
+        private final TreeMap<Long, String> sequences = new TreeMap<Long, String>();
+
+        public ClientQueue() {
+            this(-1);
+        }
+
+        /**
+         * Create a queue.
+         *
+         * @param maxSize the maximum number of messages, or -1 for unbounded
+         */
+        public ClientQueue(final int maxSize) {
+            queue = new LinkedHashMap<String, CacheMessage>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheMessage> eldest) {
+                    return maxSize > 0 && size() > maxSize;
+                }
+            };
+        }
+
+        /**
+         * Add a message, unless a message with the same ID is already queued.
+         *
+         * @param message a {@link CacheMessage}
+         * @return true if added
+         */
+        public synchronized boolean add(CacheMessage message) {
+            if (queue.containsKey(message.getId())) {
+                return false;
+            }
+            queue.put(message.getId(), message);
+            if (message.getSequence() >= 0) {
+                sequences.put(message.getSequence(), message.getId());
+            }
+            return true;
+        }
+
+        public synchronized boolean remove(CacheMessage message) {
+            if (queue.remove(message.getId()) == null) {
+                return false;
+            }
+            if (message.getSequence() >= 0) {
+                sequences.remove(message.getSequence());
+            }
+            return true;
+        }
+
+        public synchronized boolean contains(String messageId) {
+            return queue.containsKey(messageId);
+        }
+
+        public synchronized int size() {
+            return queue.size();
+        }
+
+        /**
+         * Return the lowest sequence number of the queued messages.
+         *
+         * @return the sequence number, or -1 if no message with a sequence number is queued
+         */
+        public synchronized long firstSequence() {
+            Map.Entry<Long, String> first;
+            while ((first = sequences.firstEntry()) != null) {
+                CacheMessage m = queue.get(first.getValue());
+                if (m != null && m.getSequence() == first.getKey()) {
+                    return first.getKey();
+                }
+                sequences.pollFirstEntry();
+            }
+            return -1;
+        }
+
+        /**
+         * Return a snapshot of the messages, in insertion order.
+         *
+         * @return the messages
+         */
+        public synchronized List<CacheMessage> messages() {
+            return new ArrayList<CacheMessage>(queue.values());
+        }
+
+        /**
+         * Return a snapshot of the message IDs, in insertion order.
+         *
+         * @return the message IDs
+         */
+        public synchronized Set<String> ids() {
+            return new LinkedHashSet<String>(queue.keySet());
+        }
 
-        public LinkedList<CacheMessage> getQueue() {
-            return queue;
+        /**
+         * Return the messages, in insertion order. Adding or removing a message from the returned list adds or
+         * removes it from this queue.
+         *
+         * @return the messages
+         * @deprecated use {@link #messages()}, {@link #add(CacheMessage)} and {@link #remove(CacheMessage)}
+         */
+        @Deprecated
+        public synchronized LinkedList<CacheMessage> getQueue() {
+            return new QueueView(queue.values());
         }
 
+        /**
+         * Return the message IDs. Removing an ID from the returned set removes its message from this queue, and
+         * the returned set must be synchronized on this queue when iterated. IDs can't be added.
+         *
+         * @return the message IDs
+         * @deprecated use {@link #ids()} and {@link #contains(String)}
+         */
+        @Deprecated
         public Set<String> getIds() {
-            return ids;
+            return queue.keySet();
+        }
+
+        /**
+         * The list returned by {@link #getQueue()}, writing its modifications through to the {@link ClientQueue}.
+         */
+        private final class QueueView extends LinkedList<CacheMessage> {
+
+            QueueView(Collection<CacheMessage> messages) {
+                super.addAll(messages);
+            }
+
+            @Override
+            public boolean add(CacheMessage message) {
+                return ClientQueue.this.add(message) && super.add(message);
+            }
+
+            @Override
+            public void addLast(CacheMessage message) {
+                add(message);
+            }
+
+            @Override
+            public boolean addAll(Collection<? extends CacheMessage> messages) {
+                boolean modified = false;
+                for (CacheMessage m : messages) {
+                    modified |= add(m);
+                }
+                return modified;
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (o instanceof CacheMessage) {
+                    ClientQueue.this.remove((CacheMessage) o);
+                }
+                return super.remove(o);
+            }
+
+            @Override
+            public CacheMessage remove() {
+                return removed(super.remove());
+            }
+
+            @Override
+            public CacheMessage removeFirst() {
+                return removed(super.removeFirst());
+            }
+
+            @Override
+            public CacheMessage poll() {
+                return removed(super.poll());
+            }
+
+            @Override
+            public CacheMessage pollFirst() {
+                return removed(super.pollFirst());
+            }
+
+            @Override
+            public CacheMessage pop() {
+                return removed(super.pop());
+            }
+
+            @Override
+            public void clear() {
+                for (CacheMessage m : this) {
+                    ClientQueue.this.remove(m);
+                }
+                super.clear();
+            }
+
+            @Override
+            public ListIterator<CacheMessage> listIterator(int index) {
+                final ListIterator<CacheMessage> i = super.listIterator(index);
+                return new ListIterator<CacheMessage>() {
+                    private CacheMessage last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i.hasNext();
+                    }
+
+                    @Override
+                    public CacheMessage next() {
+                        return last = i.next();
+                    }
+
+                    @Override
+                    public boolean hasPrevious() {
+                        return i.hasPrevious();
+                    }
+
+                    @Override
+                    public CacheMessage previous() {
+                        return last = i.previous();
+                    }
+
+                    @Override
+                    public int nextIndex() {
+                        return i.nextIndex();
+                    }
+
+                    @Override
+                    public int previousIndex() {
+                        return i.previousIndex();
+                    }
+
+                    @Override
+                    public void remove() {
+                        i.remove();
+                        removed(last);
+                    }
+
+                    @Override
+                    public void set(CacheMessage message) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public void add(CacheMessage message) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            private CacheMessage removed(CacheMessage message) {
+                if (message != null) {
+                    ClientQueue.this.remove(message);
+                }
+                return message;
+            }
         }
 
         @Override
-        public String toString() {
-            return queue.toString();
+        public synchronized String toString() {
+            return queue.values().toString();
         }
     }
 
     @Override
     public void configure(BroadcasterConfig config) {
-        Object o = config.getAtmosphereConfig().properties().get("shared");
-        if (o != null) {
-            shared = Boolean.parseBoolean(o.toString());
+        expiry = CacheExpiry.get(config.getAtmosphereConfig());
+
+        String s = config.getAtmosphereConfig().getInitParameter(ApplicationConfig.UUIDBROADCASTERCACHE_SHARED_LOG);
+        if (s != null) {
+            sharedLog = Boolean.parseBoolean(s);
         }
 
-        if (shared) {
-            taskScheduler = ExecutorsFactory.getScheduler(config.getAtmosphereConfig());
-        } else {
-            taskScheduler = Executors.newSingleThreadScheduledExecutor();
+        s = config.getAtmosphereConfig().getInitParameter(ApplicationConfig.UUIDBROADCASTERCACHE_LOG_CAPACITY);
+        if (s != null) {
+            logCapacity = Integer.valueOf(s);
+        }
+
+        s = config.getAtmosphereConfig().getInitParameter(ApplicationConfig.UUIDBROADCASTERCACHE_MAX_QUEUE_SIZE);
+        if (s != null) {
+            maxQueueSize = Integer.valueOf(s);
         }
+
+        encoder = MessageEncoder.fromConfig(config.getAtmosphereConfig());
     }
 
     @Override
     public void start() {
-        scheduledFuture = taskScheduler.scheduleWithFixedDelay(new Runnable() {
-            @Override
-            public void run() {
-                invalidateExpiredEntries();
-            }
-        }, 0, invalidateCacheInterval, TimeUnit.MILLISECONDS);
+        if (expiry == null) {
+            expiry = CacheExpiry.getDefault();
+        }
+        schedule();
     }
 
     @Override
     public void stop() {
         cleanup();
+    }
 
-        if (taskScheduler != null) {
-            taskScheduler.shutdown();
+    @Override
+    public void cleanup() {
+        if (expiry != null) {
+            expiry.cancel(this);
         }
     }
 
+    /**
+     * Invalidate the idle clients and the expired messages. A cache without clients and messages isn't visited
+     * again until a message is cached or retrieved.
+     *
+     * @param now the current time in milliseconds
+     * @return the time of the next invalidation, or -1
+     */
     @Override
-    public void cleanup() {
-        if (scheduledFuture != null) {
-            scheduledFuture.cancel(false);
-            scheduledFuture = null;
+    public long expire(long now) {
+        invalidateExpiredEntries();
+
+        if (!activeClients.isEmpty() || !messages.isEmpty()) {
+            return now + invalidateCacheInterval;
+        }
+
+        for (MessageLog log : logs.values()) {
+            if (log.size() > 0 || log.clients() > 0) {
+                return now + invalidateCacheInterval;
+            }
+        }
+        return -1;
+    }
+
+    private void schedule() {
+        if (expiry != null) {
+            expiry.schedule(this, System.currentTimeMillis() + invalidateCacheInterval);
         }
     }
 
     @Override
     public CacheMessage addToCache(String broadcasterId, AtmosphereResource r, BroadcastMessage message) {
 
-        Object e = message.message;
+        Object e = encoder == null ? message.message : encoder.encode(message.message);
         if (logger.isTraceEnabled()) {
             logger.trace("Adding for AtmosphereResource {} cached messages {}", r != null ? r.uuid() : "null", e);
             logger.trace("Active clients {}", activeClients());
         }
 
         long now = System.currentTimeMillis();
-        String messageId = UUID.randomUUID().toString();
-        CacheMessage cacheMessage = new CacheMessage(messageId, e);
+        schedule();
+        if (sharedLog) {
+            String clientId = null;
+            if (r != null) {
+                clientId = uuid(r);
+                activeClients.put(clientId, now);
+            }
+            return log(broadcasterId).append(e, clientId, now);
+        }
+
+        long s = sequence.getAndIncrement();
+        CacheMessage cacheMessage = new CacheMessage(epoch + ":" + s, s, System.nanoTime(), e);
         if (r == null) {
             //no clients are connected right now, caching message for all active clients
             for (Map.Entry<String, Long> entry : activeClients.entrySet()) {
@@ -148,8 +457,24 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
     public List<Object> retrieveFromCache(String broadcasterId, AtmosphereResource r) {
         String clientId = uuid(r);
         long now = System.currentTimeMillis();
+        schedule();
+
+        if (sharedLog) {
+            activeClients.put(clientId, now);
+            MessageLog log = log(broadcasterId);
+            // Read before retrieving, so the client never skips a message appended meanwhile.
+            long next = log.end();
+            List<Object> result = log.retrieve(clientId, cursor(r, broadcasterId, log.epoch()));
+            if (encoder != null) {
+                encoder.decode(result);
+            }
+            cursor(r, broadcasterId, log.epoch(), next);
+            logger.trace("Retrieved for AtmosphereResource {} cached messages {}", r.uuid(), result);
+            return result;
+        }
 
         List<Object> result = new ArrayList<Object>();
+        long cursor = cursor(r, broadcasterId, epoch);
 
         ClientQueue clientQueue;
         activeClients.put(clientId, now);
@@ -158,13 +483,21 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
         if (clientQueue == null) {
             clientMessages = Collections.emptyList();
         } else {
-            clientMessages = clientQueue.getQueue();
+            clientMessages = clientQueue.messages();
         }
 
+        long next = cursor;
         for (CacheMessage cacheMessage : clientMessages) {
-            result.add(cacheMessage.getMessage());
+            // Already received by the client.
+            if (cacheMessage.getSequence() < cursor) continue;
+
+            result.add(encoder == null ? cacheMessage.getMessage() : encoder.decode(cacheMessage.getMessage()));
+            next = Math.max(next, cacheMessage.getSequence() + 1);
         }
 
+        cursor(r, broadcasterId, epoch, next);
+        dequeued(clientId, clientMessages);
+
         if (logger.isTraceEnabled()) {
             logger.trace("Retrieved for AtmosphereResource {} cached messages {}", r.uuid(), result);
             logger.trace("Available cached message {}", messages);
@@ -182,14 +515,52 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
         }
 
         String clientId = uuid(r);
+        if (MessageLog.Message.class.isAssignableFrom(message.getClass())) {
+            MessageLog log = logs.get(broadcasterId);
+            if (log != null) {
+                cursor(r, broadcasterId, log.epoch(), log.delivered(clientId, MessageLog.Message.class.cast(message)));
+            }
+            return;
+        }
+
         ClientQueue clientQueue;
         clientQueue = messages.get(clientId);
+        long pending = -1;
         if (clientQueue != null) {
             logger.trace("Removing for AtmosphereResource {} cached message {}", r.uuid(), message.getMessage());
-            clientQueue.getQueue().remove(message);
+            if (clientQueue.remove(message)) {
+                dequeued(clientId, Collections.singletonList(message));
+            }
+            pending = clientQueue.firstSequence();
+        }
+
+        // Messages can be delivered out of order, so the cursor never moves past a message still queued.
+        if (message.getSequence() >= 0) {
+            cursor(r, broadcasterId, epoch, pending >= 0 ? pending : message.getSequence() + 1);
         }
     }
 
+    /**
+     * Invoked when a message is about to be added to the {@link ClientQueue} of a client. When the message is
+     * already queued, {@link #dequeued(String, List)} is invoked right after.
+     *
+     * @param clientId the client
+     * @param message  the added message
+     */
+    protected void enqueued(String clientId, CacheMessage message) {
+    }
+
+    /**
+     * Invoked once the messages cached for a client have been removed from its {@link ClientQueue} by
+     * {@link #retrieveFromCache(String, AtmosphereResource)}, including the messages the client already received,
+     * or by {@link #clearCache(String, AtmosphereResource, CacheMessage)}.
+     *
+     * @param clientId the client
+     * @param messages the removed messages
+     */
+    protected void dequeued(String clientId, List<CacheMessage> messages) {
+    }
+
     @Override
     public BroadcasterCache inspector(BroadcasterCacheInspector b) {
         inspectors.add(b);
@@ -200,27 +571,96 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
         return r.uuid();
     }
 
-    private void addMessageIfNotExists(String clientId, CacheMessage message) {
-        if (!hasMessage(clientId, message.getId())) {
-            addMessage(clientId, message);
-        } else {
-            logger.debug("Duplicate message {} for client {}", clientId, message);
+    /**
+     * Return the sequence number of the next message a client expects, sent back by the client in the X-Cache-Date
+     * header as <code>broadcasterId:epoch:sequence</code>.
+     *
+     * @param r             an {@link AtmosphereResource}
+     * @param broadcasterId the {@link org.atmosphere.cpr.Broadcaster} ID
+     * @param epoch         the epoch of the {@link MessageLog} or of this cache
+     * @return the sequence number, or -1 if the client didn't receive any message yet or if the cursor was sent by
+     *         another {@link org.atmosphere.cpr.Broadcaster} or epoch
+     */
+    protected long cursor(AtmosphereResource r, String broadcasterId, String epoch) {
+        AtmosphereRequest request = r.getRequest();
+        String s = request == null ? null : request.getHeader(X_CACHE_DATE);
+        return sequence(s, prefix(broadcasterId, epoch));
+    }
+
+    // Send the cursor to the client, unless it already has a more recent one of the same epoch.
+    private void cursor(AtmosphereResource r, String broadcasterId, String epoch, long next) {
+        if (next <= 0) return;
+
+        try {
+            AtmosphereResponse response = r.getResponse();
+            if (response == null) return;
+
+            String prefix = prefix(broadcasterId, epoch);
+            if (sequence(response.getHeader(X_CACHE_DATE), prefix) < next) {
+                response.setHeader(X_CACHE_DATE, prefix + next);
+            }
+        } catch (Exception ex) {
+            logger.trace("Unable to set the {} header for {}", X_CACHE_DATE, r.uuid(), ex);
         }
     }
 
-    private void addMessage(String clientId, CacheMessage message) {
-        ClientQueue clientQueue = messages.get(clientId);
-        if (clientQueue == null) {
-            clientQueue = new ClientQueue();
-            messages.put(clientId, clientQueue);
+    private static long sequence(String cursor, String prefix) {
+        if (cursor == null || !cursor.startsWith(prefix)) return -1;
+
+        try {
+            long s = Long.valueOf(cursor.substring(prefix.length()));
+            return s > 0 ? s : -1;
+        } catch (NumberFormatException ex) {
+            logger.trace("Invalid {} header {}", X_CACHE_DATE, cursor);
+            return -1;
+        }
+    }
+
+    private static String prefix(String broadcasterId, String epoch) {
+        try {
+            return URLEncoder.encode(broadcasterId, "UTF-8") + ":" + epoch + ":";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the epoch of this cache, which scopes the sequence numbers of the messages cached for every client.
+     *
+     * @return the epoch
+     */
+    public String epoch() {
+        return epoch;
+    }
+
+    private MessageLog log(String broadcasterId) {
+        MessageLog log = logs.get(broadcasterId);
+        if (log == null) {
+            log = new MessageLog(logCapacity);
+            MessageLog previous = logs.putIfAbsent(broadcasterId, log);
+            if (previous != null) {
+                log = previous;
+            }
         }
-        clientQueue.getQueue().addLast(message);
-        clientQueue.getIds().add(message.getId());
+        return log;
     }
 
-    private boolean hasMessage(String clientId, String messageId) {
+    private void addMessageIfNotExists(String clientId, CacheMessage message) {
         ClientQueue clientQueue = messages.get(clientId);
-        return clientQueue != null && clientQueue.getIds().contains(messageId);
+        if (clientQueue == null) {
+            clientQueue = new ClientQueue(maxQueueSize);
+            ClientQueue previous = messages.putIfAbsent(clientId, clientQueue);
+            if (previous != null) {
+                clientQueue = previous;
+            }
+        }
+
+        // Before adding, so the message is never dequeued before being enqueued.
+        enqueued(clientId, message);
+        if (!clientQueue.add(message)) {
+            logger.debug("Duplicate message {} for client {}", clientId, message);
+            dequeued(clientId, Collections.singletonList(message));
+        }
     }
 
     public Map<String, ClientQueue> messages() {
@@ -231,6 +671,60 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
         return activeClients;
     }
 
+    /**
+     * Return the {@link MessageLog}s, by {@link org.atmosphere.cpr.Broadcaster} ID. Only used when
+     * {@link #setSharedLog(boolean)} is enabled.
+     *
+     * @return the {@link MessageLog}s
+     */
+    public Map<String, MessageLog> logs() {
+        return logs;
+    }
+
+    /**
+     * Append every message once to a {@link MessageLog} instead of copying it for every client.
+     *
+     * @param sharedLog true to use a {@link MessageLog}
+     * @return this
+     */
+    public UUIDBroadcasterCache setSharedLog(boolean sharedLog) {
+        this.sharedLog = sharedLog;
+        return this;
+    }
+
+    /**
+     * Set the number of messages a {@link MessageLog} can hold before expiring the oldest one.
+     *
+     * @param logCapacity the number of messages
+     * @return this
+     */
+    public UUIDBroadcasterCache setLogCapacity(int logCapacity) {
+        this.logCapacity = logCapacity;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of messages cached per client. When reached, the oldest message is dropped.
+     *
+     * @param maxQueueSize the maximum number of messages, or -1 for unbounded
+     * @return this
+     */
+    public UUIDBroadcasterCache setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+        return this;
+    }
+
+    /**
+     * Store the encoded form of the messages, see {@link MessageEncoder}.
+     *
+     * @param encoder a {@link MessageEncoder}, or null to store the messages as they are
+     * @return this
+     */
+    public UUIDBroadcasterCache setEncoder(MessageEncoder encoder) {
+        this.encoder = encoder;
+        return this;
+    }
+
     protected boolean inspect(BroadcastMessage m) {
         for (BroadcasterCacheInspector b : inspectors) {
             if (!b.inspect(m)) return false;
@@ -240,8 +734,10 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
 
     public void setInvalidateCacheInterval(long invalidateCacheInterval) {
         this.invalidateCacheInterval = invalidateCacheInterval;
-        scheduledFuture.cancel(true);
-        start();
+        if (expiry != null) {
+            expiry.cancel(this);
+            schedule();
+        }
     }
 
     public void setClientIdleTime(long clientIdleTime) {
@@ -262,6 +758,13 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
         for (String clientId : inactiveClients) {
             activeClients.remove(clientId);
             messages.remove(clientId);
+            for (MessageLog log : logs.values()) {
+                log.remove(clientId);
+            }
+        }
+
+        for (MessageLog log : logs.values()) {
+            log.expire(now - clientIdleTime);
         }
 
     }
@@ -269,6 +772,11 @@ public class UUIDBroadcasterCache implements BroadcasterCache {
     @Override
     public void excludeFromCache(String broadcasterId, AtmosphereResource r) {
         activeClients.remove(r.uuid());
+
+        MessageLog log = logs.get(broadcasterId);
+        if (log != null) {
+            log.exclude(uuid(r));
+        }
     }
 
     @Override
@@ -301,6 +301,8 @@ public interface ApplicationConfig {
     String BROADCASTER_MESSAGE_PROCESSING_THREADPOOL_MAXSIZE = ApplicationConfig.class.getPackage().getName() + ".broadcaster.maxProcessingThreads";
     /**
      * The maximum number of Thread created when writing requests {@link BroadcasterConfig#setAsyncWriteService(java.util.concurrent.ExecutorService)}.
+     * A {@link DefaultBroadcaster} uses one write shard per thread, up to twice the number of available processors, to
+     * serialize the write operations of its {@link AtmosphereResource}s.
      * <p>
      * Default: 200<br>
      * Value: org.atmosphere.cpr.broadcaster.maxAsyncWriteThreads
@@ -518,7 +520,8 @@ public interface ApplicationConfig {
     String WRITE_TIMEOUT = Broadcaster.class.getName() + ".writeTimeout";
     /**
      * The sleep time, in millisecond, before the {@link DefaultBroadcaster} release its reactive thread for pushing message
-     * and execute async write. Setting this value too high may create too many threads.
+     * and execute async write. Setting this value too high may create too many threads. Only used when
+     * {@link #OUT_OF_ORDER_BROADCAST} is enabled.
      * <p>
      * Default: 1000<br>
      * Value: org.atmosphere.cpr.Broadcaster.threadWaitTime
@@ -644,5 +647,264 @@ public interface ApplicationConfig {
      * Value: org.atmosphere.websocket.webSocketBufferingMaxSize
      */
     String IN_MEMORY_STREAMING_BUFFER_SIZE = DefaultWebSocketProcessor.class.getPackage().getName() + ".webSocketBufferingMaxSize";
+    /**
+     * Encode a broadcasted message once and share the resulting bytes amongst all {@link AtmosphereResource} instead
+     * of encoding it for every {@link AtmosphereResource}. Messages modified by a {@link PerRequestBroadcastFilter} or
+     * written using a {@link Serializer} are still encoded per {@link AtmosphereResource}.
+     * <p>
+     * The shared bytes are only used by the {@link org.atmosphere.handler.AbstractReflectorAtmosphereHandler}s writing a
+     * single message to the response's OutputStream, which includes the WebSocket connections using that stream. A
+     * message written using the response's Writer, a List of cached messages, and the {@link AtmosphereHandler}s or
+     * {@link AsyncIOWriter}s writing the message themselves are still encoded per {@link AtmosphereResource}.
+     * <p>
+     * Default: false<br>
+     * Value: org.atmosphere.cpr.Broadcaster.shareEncodedMessage
+     */
+    String SHARE_ENCODED_MESSAGE = Broadcaster.class.getName() + ".shareEncodedMessage";
+    /**
+     * Coalesce the pending writes of an {@link AtmosphereResource}: when the {@link DefaultBroadcaster} drains its
+     * write queue, all messages queued for the same {@link AtmosphereResource} are delivered using a single
+     * {@link AtmosphereHandler#onStateChange(AtmosphereResourceEvent)} and flushed once. Messages are delivered as a
+     * {@link java.util.List}, like cached messages, so every message is still written and framed individually. Not
+     * supported when {@link #OUT_OF_ORDER_BROADCAST} is enabled.
+     * <p>
+     * Default: false<br>
+     * Value: org.atmosphere.cpr.Broadcaster.coalesceWrites
+     */
+    String BROADCASTER_COALESCE_WRITES = Broadcaster.class.getName() + ".coalesceWrites";
+    /**
+     * The maximum number of messages coalesced into a single write. See {@link #BROADCASTER_COALESCE_WRITES}
+     * <p>
+     * Default: 64<br>
+     * Value: org.atmosphere.cpr.Broadcaster.coalesceMaxMessages
+     */
+    String BROADCASTER_COALESCE_MAX_MESSAGES = Broadcaster.class.getName() + ".coalesceMaxMessages";
+    /**
+     * The maximum size, in bytes, of messages coalesced into a single write. Only String and byte[] messages are
+     * counted. See {@link #BROADCASTER_COALESCE_WRITES}
+     * <p>
+     * Default: 65536<br>
+     * Value: org.atmosphere.cpr.Broadcaster.coalesceMaxBytes
+     */
+    String BROADCASTER_COALESCE_MAX_BYTES = Broadcaster.class.getName() + ".coalesceMaxBytes";
+    /**
+     * The time, in milliseconds, a write is delayed in order to coalesce it with the following messages. See
+     * {@link #BROADCASTER_COALESCE_WRITES}
+     * <p>
+     * Default: 0 (no delay)<br>
+     * Value: org.atmosphere.cpr.Broadcaster.coalesceMaxDelay
+     */
+    String BROADCASTER_COALESCE_MAX_DELAY = Broadcaster.class.getName() + ".coalesceMaxDelay";
+    /**
+     * The maximum number of messages that can be pending for a single {@link AtmosphereResource} before the
+     * {@link #BROADCASTER_SLOW_CONSUMER_POLICY} is applied. Not supported when {@link #OUT_OF_ORDER_BROADCAST} is enabled.
+     * <p>
+     * Default: -1 (unbounded)<br>
+     * Value: org.atmosphere.cpr.Broadcaster.maxPendingMessages
+     */
+    String BROADCASTER_MAX_PENDING_MESSAGES = Broadcaster.class.getName() + ".maxPendingMessages";
+    /**
+     * The maximum size, in bytes, of the messages pending for a single {@link AtmosphereResource} before the
+     * {@link #BROADCASTER_SLOW_CONSUMER_POLICY} is applied. Only String and byte[] messages are counted. Not supported
+     * when {@link #OUT_OF_ORDER_BROADCAST} is enabled.
+     * <p>
+     * Default: -1 (unbounded)<br>
+     * Value: org.atmosphere.cpr.Broadcaster.maxPendingBytes
+     */
+    String BROADCASTER_MAX_PENDING_BYTES = Broadcaster.class.getName() + ".maxPendingBytes";
+    /**
+     * The policy applied when an {@link AtmosphereResource} reaches {@link #BROADCASTER_MAX_PENDING_MESSAGES} or
+     * {@link #BROADCASTER_MAX_PENDING_BYTES}: DROP_OLDEST, DROP_NEWEST, DISCONNECT or CONFLATE.
+     * See {@link DefaultBroadcaster.SLOW_CONSUMER_POLICY}
+     * <p>
+     * Default: DROP_OLDEST<br>
+     * Value: org.atmosphere.cpr.Broadcaster.slowConsumerPolicy
+     */
+    String BROADCASTER_SLOW_CONSUMER_POLICY = Broadcaster.class.getName() + ".slowConsumerPolicy";
+    /**
+     * When a {@link DefaultBroadcaster} has more {@link AtmosphereResource} than this value, a broadcast is delivered by
+     * splitting the {@link AtmosphereResource}s into chunks of that size, processed in parallel using the
+     * {@link BroadcasterConfig#getExecutorService()}. The order of messages is preserved for every
+     * {@link AtmosphereResource}.
+     * <p>
+     * Default: -1 (disabled)<br>
+     * Value: org.atmosphere.cpr.Broadcaster.fanOutThreshold
+     */
+    String BROADCASTER_FAN_OUT_THRESHOLD = Broadcaster.class.getName() + ".fanOutThreshold";
+    /**
+     * The {@link ConflationKey} used by the {@link DefaultBroadcaster} to replace a message pending for an
+     * {@link AtmosphereResource} by a new message with the same key. Not supported when {@link #OUT_OF_ORDER_BROADCAST}
+     * is enabled.
+     * <p>
+     * Default: null<br>
+     * Value: org.atmosphere.cpr.Broadcaster.conflationKey
+     */
+    String BROADCASTER_CONFLATION_KEY = Broadcaster.class.getName() + ".conflationKey";
+    /**
+     * The number of messages of a {@link Broadcaster.PRIORITY} the {@link DefaultBroadcaster} delivers in a row while
+     * messages of a lower {@link Broadcaster.PRIORITY} are waiting, before delivering one of them. This prevents
+     * high priority messages from starving the others.
+     * <p>
+     * Default: 16<br>
+     * Value: org.atmosphere.cpr.Broadcaster.priorityMaxBurst
+     */
+    String BROADCASTER_PRIORITY_MAX_BURST = Broadcaster.class.getName() + ".priorityMaxBurst";
+    /**
+     * The number of shards of a {@link ShardedBroadcaster}. Every shard delivers the messages to its own subset of
+     * the {@link AtmosphereResource}s, using its own queue and threads.
+     * <p>
+     * Default: the number of available processors<br>
+     * Value: org.atmosphere.cpr.Broadcaster.shards
+     */
+    String BROADCASTER_SHARDS = Broadcaster.class.getName() + ".shards";
+    /**
+     * Tell the {@link org.atmosphere.cache.UUIDBroadcasterCache} to append every message once to a shared
+     * {@link org.atmosphere.cache.MessageLog}, and to only keep a cursor per client, instead of copying every message
+     * for every client.
+     * <p>
+     * Default: false<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.sharedLog
+     */
+    String UUIDBROADCASTERCACHE_SHARED_LOG = BroadcasterCache.class.getName() + ".sharedLog";
+    /**
+     * The number of messages a {@link org.atmosphere.cache.MessageLog} of the
+     * {@link org.atmosphere.cache.UUIDBroadcasterCache} holds before expiring the oldest one.
+     * <p>
+     * Default: 1024<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.logCapacity
+     */
+    String UUIDBROADCASTERCACHE_LOG_CAPACITY = BroadcasterCache.class.getName() + ".logCapacity";
+    /**
+     * The maximum number of messages the {@link org.atmosphere.cache.UUIDBroadcasterCache} caches per client. When
+     * reached, the oldest message is dropped.
+     * <p>
+     * Default: -1 (unbounded)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.maxQueueSize
+     */
+    String UUIDBROADCASTERCACHE_MAX_QUEUE_SIZE = BroadcasterCache.class.getName() + ".maxQueueSize";
+    /**
+     * The directory where the {@link org.atmosphere.cache.MappedBroadcasterCache} stores its logs, one sub directory
+     * per {@link Broadcaster}. The directory must not be shared with other users, and is only accessible by its owner.
+     * <p>
+     * Default: none, required by the {@link org.atmosphere.cache.MappedBroadcasterCache}<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.mappedDirectory
+     */
+    String MAPPED_BROADCASTERCACHE_DIRECTORY = BroadcasterCache.class.getName() + ".mappedDirectory";
+    /**
+     * The size, in bytes, of a memory-mapped segment of the {@link org.atmosphere.cache.MappedBroadcasterCache}.
+     * <p>
+     * Default: 16777216 (16MB)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.mappedSegmentSize
+     */
+    String MAPPED_BROADCASTERCACHE_SEGMENT_SIZE = BroadcasterCache.class.getName() + ".mappedSegmentSize";
+    /**
+     * The maximum size, in bytes, of the log of a {@link Broadcaster} in the
+     * {@link org.atmosphere.cache.MappedBroadcasterCache}. The oldest segments are deleted when reached.
+     * <p>
+     * Default: 268435456 (256MB)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.mappedMaxBytes
+     */
+    String MAPPED_BROADCASTERCACHE_MAX_BYTES = BroadcasterCache.class.getName() + ".mappedMaxBytes";
+    /**
+     * The time, in milliseconds, a message stays in the {@link org.atmosphere.cache.MappedBroadcasterCache}.
+     * <p>
+     * Default: 120000 (2 minutes)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.mappedMaxTime
+     */
+    String MAPPED_BROADCASTERCACHE_MAX_TIME = BroadcasterCache.class.getName() + ".mappedMaxTime";
+    /**
+     * Release the memory mapping of a closed or expired segment of the {@link org.atmosphere.cache.MappedBroadcasterCache}
+     * right away, using internal JDK APIs. When disabled, or when those APIs aren't available, a segment is released
+     * when garbage collected, and a deleted segment may use disk space until then.
+     * <p>
+     * Default: false<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.mappedUnmap
+     */
+    String MAPPED_BROADCASTERCACHE_UNMAP = BroadcasterCache.class.getName() + ".mappedUnmap";
+    /**
+     * The maximum estimated size, in bytes, of the messages cached by the
+     * {@link org.atmosphere.cache.BoundedBroadcasterCache}. The oldest messages are evicted when reached.
+     * <p>
+     * Default: 67108864 (64MB)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.boundedMaxBytes
+     */
+    String BOUNDED_BROADCASTERCACHE_MAX_BYTES = BroadcasterCache.class.getName() + ".boundedMaxBytes";
+    /**
+     * The maximum estimated size, in bytes, of the messages cached for a {@link Broadcaster} by the
+     * {@link org.atmosphere.cache.BoundedBroadcasterCache}. The oldest messages of the {@link Broadcaster} are evicted
+     * when reached.
+     * <p>
+     * Default: -1 (unbounded)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.boundedMaxBytesPerBroadcaster
+     */
+    String BOUNDED_BROADCASTERCACHE_MAX_BYTES_PER_BROADCASTER = BroadcasterCache.class.getName() + ".boundedMaxBytesPerBroadcaster";
+    /**
+     * The time, in milliseconds, a message stays in the {@link org.atmosphere.cache.BoundedBroadcasterCache}.
+     * <p>
+     * Default: 120000 (2 minutes)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.boundedMaxTime
+     */
+    String BOUNDED_BROADCASTERCACHE_MAX_TIME = BroadcasterCache.class.getName() + ".boundedMaxTime";
+    /**
+     * Store the UTF-8 bytes of the String messages in the {@link org.atmosphere.cache.UUIDBroadcasterCache} and the
+     * {@link org.atmosphere.cache.AbstractBroadcasterCache}s instead of the messages. Cached messages are decoded
+     * back to Strings when retrieved, before being filtered and written. This only reduces the heap used by the
+     * cache: every retrieval decodes the messages again, so replaying costs more CPU than without encoding.
+     * <p>
+     * Default: false<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.encodeMessage
+     */
+    String BROADCASTERCACHE_ENCODE_MESSAGE = BroadcasterCache.class.getName() + ".encodeMessage";
+    /**
+     * When {@link #BROADCASTERCACHE_ENCODE_MESSAGE} is enabled, the size, in bytes, from which the stored bytes of a
+     * message are deflated. Deflated messages are inflated again on every retrieval.
+     * <p>
+     * Default: -1 (never)<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.compressionThreshold
+     */
+    String BROADCASTERCACHE_COMPRESSION_THRESHOLD = BroadcasterCache.class.getName() + ".compressionThreshold";
+    /**
+     * Deliver the messages before caching them. A message is no longer cached for every connected
+     * {@link AtmosphereResource} and removed once written: it is only cached for a resource when its write fails, and
+     * for the resources recently removed from the {@link Broadcaster}, which may reconnect. A message broadcasted while
+     * no resource is connected is cached as before.
+     * <p>
+     * Default: false<br>
+     * Value: org.atmosphere.cpr.Broadcaster.cacheOnFailure
+     */
+    String BROADCASTER_CACHE_ON_FAILURE = Broadcaster.class.getName() + ".cacheOnFailure";
+    /**
+     * When {@link #BROADCASTER_CACHE_ON_FAILURE} is enabled, the time, in milliseconds, messages are cached for an
+     * {@link AtmosphereResource} removed from a {@link Broadcaster}.
+     * <p>
+     * Default: 60000 (1 minute)<br>
+     * Value: org.atmosphere.cpr.Broadcaster.cacheOnFailureWindow
+     */
+    String BROADCASTER_CACHE_ON_FAILURE_WINDOW = Broadcaster.class.getName() + ".cacheOnFailureWindow";
+    /**
+     * The time, in milliseconds, after which a write to an {@link AtmosphereResource} is considered stalled. The other
+     * {@link AtmosphereResource}s sharing its write shard are then written by another thread, instead of waiting for
+     * the stalled write. A value of -1 disables it.
+     * <p>
+     * Default: 1000<br>
+     * Value: org.atmosphere.cpr.Broadcaster.writeStallTime
+     */
+    String BROADCASTER_WRITE_STALL_TIME = Broadcaster.class.getName() + ".writeStallTime";
+    /**
+     * The time, in milliseconds, a {@link org.atmosphere.util.TopicBroadcaster} keeps the subscriptions of a removed
+     * {@link AtmosphereResource}, waiting for the client to reconnect.
+     * <p>
+     * Default: 60000 (1 minute)<br>
+     * Value: org.atmosphere.cpr.Broadcaster.topicSubscriptionTimeout
+     */
+    String TOPIC_BROADCASTER_SUBSCRIPTION_TIMEOUT = Broadcaster.class.getName() + ".topicSubscriptionTimeout";
+    /**
+     * The maximum number of messages an {@link org.atmosphere.cache.AbstractBroadcasterCache} keeps. When reached, the
+     * oldest message is dropped. Use -1 for unbounded.
+     * <p>
+     * Default: 10000<br>
+     * Value: org.atmosphere.cpr.BroadcasterCache.maxCacheSize
+     */
+    String BROADCASTERCACHE_MAX_SIZE = BroadcasterCache.class.getName() + ".maxCacheSize";
 }
 
@@ -24,10 +24,16 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A Factory used to manage {@link AtmosphereResource} instances. You can use this factory to create, remove and find
  * {@link AtmosphereResource} instances that are associated with one or several {@link Broadcaster}s.
+ * <p/>
+ * Live {@link AtmosphereResource}s are registered using their {@link AtmosphereResource#uuid()} when they get associated
+ * with a {@link Broadcaster}, and unregistered when they are resumed, cancelled or destroyed, hence {@link #find(String)}
+ * and {@link #remove(String)} never have to visit the {@link Broadcaster}s.
  *
  * @author Jeanfrancois Arcand
  */
@@ -35,6 +41,8 @@ public final class AtmosphereResourceFactory {
 
     private final static Logger logger = LoggerFactory.getLogger(AtmosphereResourceFactory.class);
     private final static AtmosphereResourceFactory factory = new AtmosphereResourceFactory();
+    // Rough number of bytes used by a registry entry: the map entry, the uuid String and its characters.
+    private final static int ENTRY_FOOTPRINT = 32 + 40 + 2 * 36;
     private final static Broadcaster noOps = (Broadcaster)
             Proxy.newProxyInstance(Broadcaster.class.getClassLoader(), new Class[]{Broadcaster.class},
                     new InvocationHandler() {
@@ -61,6 +69,8 @@ public final class AtmosphereResourceFactory {
         }
     };
 
+    private final ConcurrentHashMap<String, AtmosphereResource> resources = new ConcurrentHashMap<String, AtmosphereResource>();
+
     /**
      * Create an {@link AtmosphereResourceImpl}
      *
@@ -173,7 +183,7 @@ public final class AtmosphereResourceFactory {
      * @return the {@link AtmosphereResource}, or null if not found.
      */
     public final AtmosphereResource remove(String uuid) {
-        AtmosphereResource r = find(uuid);
+        AtmosphereResource r = resources.remove(key(uuid));
         if (r != null) {
             r.getAtmosphereConfig().getBroadcasterFactory().removeAllAtmosphereResource(r);
         }
@@ -187,15 +197,63 @@ public final class AtmosphereResourceFactory {
      * @return the {@link AtmosphereResource}, or null if not found.
      */
     public final AtmosphereResource find(String uuid) {
-        Collection<Broadcaster> l = BroadcasterFactory.getDefault().lookupAll();
-        for (Broadcaster b : l) {
-            for (AtmosphereResource r : b.getAtmosphereResources()) {
-                if (r.uuid().equalsIgnoreCase(uuid)) {
-                    return r;
-                }
-            }
+        if (uuid == null) {
+            return null;
         }
-        return null;
+        return resources.get(key(uuid));
+    }
+
+    /**
+     * Register a live {@link AtmosphereResource}, replacing the one registered with the same
+     * {@link AtmosphereResource#uuid()}.
+     *
+     * @param r an {@link AtmosphereResource}
+     */
+    void register(AtmosphereResource r) {
+        resources.put(key(r.uuid()), r);
+    }
+
+    /**
+     * Unregister an {@link AtmosphereResource}. Another instance registered with the same
+     * {@link AtmosphereResource#uuid()} is never unregistered.
+     *
+     * @param r an {@link AtmosphereResource}
+     */
+    void unregister(AtmosphereResource r) {
+        resources.remove(key(r.uuid()), r);
+    }
+
+    private static String key(String uuid) {
+        // uuid are compared ignoring case.
+        return uuid.toLowerCase();
+    }
+
+    /**
+     * Return the registered {@link AtmosphereResource}s.
+     *
+     * @return the registered {@link AtmosphereResource}s
+     */
+    public Collection<AtmosphereResource> findAll() {
+        return Collections.unmodifiableCollection(resources.values());
+    }
+
+    /**
+     * Return the number of registered {@link AtmosphereResource}s.
+     *
+     * @return the number of registered {@link AtmosphereResource}s
+     */
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * Return an estimate, in bytes, of the memory used by the registry itself, not including the
+     * {@link AtmosphereResource}s.
+     *
+     * @return an estimate of the memory used by the registry
+     */
+    public long estimatedFootprint() {
+        return (long) resources.size() * ENTRY_FOOTPRINT;
     }
 
     public final static AtmosphereResourceFactory getDefault() {
@@ -293,6 +293,7 @@ public class AtmosphereResourceImpl implements AtmosphereResource {
                 if (config.getBroadcasterFactory() != null) {
                     config.getBroadcasterFactory().removeAllAtmosphereResource(this);
                 }
+                AtmosphereResourceFactory.getDefault().unregister(this);
 
                 try {
                     req.setAttribute(ApplicationConfig.RESUMED_ON_TIMEOUT, Boolean.FALSE);
@@ -733,6 +734,7 @@ public class AtmosphereResourceImpl implements AtmosphereResource {
             if (config.getBroadcasterFactory().getDefault() != null) {
                 config.getBroadcasterFactory().getDefault().removeAllAtmosphereResource(this);
             }
+            AtmosphereResourceFactory.getDefault().unregister(this);
             req.removeAttribute(FrameworkConfig.ATMOSPHERE_RESOURCE);
             event.destroy();
         }
@@ -751,6 +753,7 @@ public class AtmosphereResourceImpl implements AtmosphereResource {
                     config.getBroadcasterFactory().getDefault().removeAllAtmosphereResource(this);
                 }
             }
+            AtmosphereResourceFactory.getDefault().unregister(this);
         } catch (Throwable t) {
             logger.trace("destroyResource", t);
         }
@@ -92,6 +92,14 @@ public interface Broadcaster {
         FIFO, REJECT
     }
 
+    /**
+     * The priority of a broadcasted message. Messages with a higher priority are delivered and written before
+     * messages with a lower priority.
+     */
+    enum PRIORITY {
+        HIGH, NORMAL, LOW
+    }
+
     /**
      * Configure a Broadcaster.
      * @param name
@@ -121,6 +129,34 @@ public interface Broadcaster {
      */
     Future<Object> broadcast(Object o);
 
+    /**
+     * Broadcast the {@link Object} to all suspended responses, eg. invoke {@link AtmosphereHandler#onStateChange}.
+     * The {@link Object} is delivered before any pending {@link Object} of a lower {@link PRIORITY}.
+     *
+     * @param o        the {@link Object} to be broadcasted
+     * @param priority the {@link PRIORITY} of the {@link Object}
+     * @return a {@link Future} that can be used to synchronize using the {@link Future#get()}
+     */
+    Future<Object> broadcast(Object o, PRIORITY priority);
+
+    /**
+     * Broadcast a batch of {@link Object}s to all suspended responses. The {@link Object}s are filtered and cached
+     * individually, but the suspended responses are visited once for the whole batch, and every
+     * {@link AtmosphereResource} receives the {@link Object}s, in order, as a single {@link java.util.List}.
+     *
+     * @param o the {@link Object}s to be broadcasted
+     * @return a {@link Future} that can be used to synchronize using the {@link Future#get()}
+     */
+    Future<Object> broadcastAll(List<?> o);
+
+    /**
+     * Broadcast a batch of {@link Object}s to all suspended responses. See {@link #broadcastAll(java.util.List)}
+     *
+     * @param o the {@link Object}s to be broadcasted
+     * @return a {@link Future} that can be used to synchronize using the {@link Future#get()}
+     */
+    Future<Object> broadcastAll(Object[] o);
+
     /**
      * Delay the broadcast operation. The {@link Object} will be broadcasted when {@link #broadcast(java.lang.Object)}
      * is invoked the first time.
@@ -178,6 +214,17 @@ public interface Broadcaster {
      */
     Future<Object> broadcast(Object o, AtmosphereResource resource);
 
+    /**
+     * Broadcast the {@link Object} to an {@link AtmosphereResource}. The {@link Object} is delivered before any
+     * pending {@link Object} of a lower {@link PRIORITY}.
+     *
+     * @param o        the {@link Object} to be broadcasted
+     * @param resource an {@link AtmosphereResource}
+     * @param priority the {@link PRIORITY} of the {@link Object}
+     * @return a {@link Future} that can be used to synchronize using the {@link Future#get()}
+     */
+    Future<Object> broadcast(Object o, AtmosphereResource resource, PRIORITY priority);
+
     /**
      * Broadcast the {@link Object} when an {@link AtmosphereResource} is resumed by a timeout or when using
      * {@link org.atmosphere.cpr.AtmosphereResource#resume()}.
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+
+/**
+ * Extract the key of a broadcasted message. When an {@link AtmosphereResource} still has a pending message with the
+ * same key, the {@link DefaultBroadcaster} drops the pending message and only delivers the new one, so a slow
+ * {@link AtmosphereResource} only receives the latest message of every key.
+ * <p/>
+ * A ConflationKey can be configured using {@link ApplicationConfig#BROADCASTER_CONFLATION_KEY} or
+ * {@link DefaultBroadcaster#setConflationKey(ConflationKey)}.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public interface ConflationKey {
+
+    /**
+     * Return the key of a message.
+     *
+     * @param r       the {@link AtmosphereResource} the message is delivered to
+     * @param message the message, after {@link PerRequestBroadcastFilter} have been applied
+     * @return the key, or null if the message must never be conflated
+     */
+    Object key(AtmosphereResource r, Object message);
+}
@@ -53,37 +53,62 @@
 package org.atmosphere.cpr;
 
 import org.atmosphere.cache.BroadcastMessage;
+import org.atmosphere.cache.CacheExpiry;
 import org.atmosphere.cache.CacheMessage;
 import org.atmosphere.cpr.BroadcastFilter.BroadcastAction;
+import org.atmosphere.util.AtmosphereResourceQueue;
+import org.atmosphere.util.PriorityLanes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_CACHE_ON_FAILURE;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_CACHE_ON_FAILURE_WINDOW;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_COALESCE_MAX_BYTES;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_COALESCE_MAX_DELAY;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_COALESCE_MAX_MESSAGES;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_COALESCE_WRITES;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_CONFLATION_KEY;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_FAN_OUT_THRESHOLD;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_MAX_PENDING_BYTES;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_MAX_PENDING_MESSAGES;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_PRIORITY_MAX_BURST;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_SLOW_CONSUMER_POLICY;
 import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_WAIT_TIME;
+import static org.atmosphere.cpr.ApplicationConfig.BROADCASTER_WRITE_STALL_TIME;
 import static org.atmosphere.cpr.ApplicationConfig.MAX_INACTIVE;
 import static org.atmosphere.cpr.ApplicationConfig.OUT_OF_ORDER_BROADCAST;
+import static org.atmosphere.cpr.ApplicationConfig.SHARE_ENCODED_MESSAGE;
 import static org.atmosphere.cpr.ApplicationConfig.SUSPENDED_ATMOSPHERE_RESOURCE_UUID;
 import static org.atmosphere.cpr.BroadcasterLifeCyclePolicy.ATMOSPHERE_RESOURCE_POLICY.EMPTY;
 import static org.atmosphere.cpr.BroadcasterLifeCyclePolicy.ATMOSPHERE_RESOURCE_POLICY.EMPTY_DESTROY;
@@ -110,11 +135,13 @@ public class DefaultBroadcaster implements Broadcaster {
     private static final Logger logger = LoggerFactory.getLogger(DefaultBroadcaster.class);
     private static final String DESTROYED = "This Broadcaster has been destroyed and cannot be used {} by invoking {}";
     private static final List<AtmosphereResourceEventListener> EMPTY_LISTENERS = new ArrayList<AtmosphereResourceEventListener>();
+    private static final int MAX_COALESCED_DRAIN = 1024;
+    private static final int MAILBOX_BATCH = 64;
 
-    protected final ConcurrentLinkedQueue<AtmosphereResource> resources =
-            new ConcurrentLinkedQueue<AtmosphereResource>();
+    protected final AtmosphereResourceQueue resources = new AtmosphereResourceQueue();
     protected BroadcasterConfig bc;
     protected final BlockingQueue<Entry> messages = new LinkedBlockingQueue<Entry>();
+    protected PriorityLanes<Entry> messageLanes;
     protected final ConcurrentLinkedQueue<BroadcasterListener> broadcasterListeners = new ConcurrentLinkedQueue<BroadcasterListener>();
 
     protected final AtomicBoolean started = new AtomicBoolean(false);
@@ -126,9 +153,12 @@ public class DefaultBroadcaster implements Broadcaster {
     protected final ConcurrentLinkedQueue<Entry> delayedBroadcast = new ConcurrentLinkedQueue<Entry>();
     protected final ConcurrentLinkedQueue<Entry> broadcastOnResume = new ConcurrentLinkedQueue<Entry>();
     protected final ConcurrentLinkedQueue<BroadcasterLifeCyclePolicyListener> lifeCycleListeners = new ConcurrentLinkedQueue<BroadcasterLifeCyclePolicyListener>();
-    protected final ConcurrentHashMap<String, WriteQueue> writeQueues = new ConcurrentHashMap<String, WriteQueue>();
     protected final WriteQueue uniqueWriteQueue = new WriteQueue("-1");
+    protected volatile AtomicReferenceArray<WriteShard> writeShards;
+    protected int writeShardsCount = -1;
+    protected long writeStallTime = 1000;
     protected final AtomicInteger dispatchThread = new AtomicInteger();
+    protected final Mailbox mailbox = new Mailbox();
 
     protected Future<?>[] notifierFuture;
     protected Future<?>[] asyncWriteFuture;
@@ -136,7 +166,7 @@ public class DefaultBroadcaster implements Broadcaster {
     private POLICY policy = POLICY.FIFO;
     private final AtomicLong maxSuspendResource = new AtomicLong(-1);
     private final AtomicBoolean requestScoped = new AtomicBoolean(false);
-    private final AtomicBoolean recentActivity = new AtomicBoolean(false);
+    protected final AtomicBoolean recentActivity = new AtomicBoolean(false);
     private BroadcasterLifeCyclePolicy lifeCyclePolicy = new BroadcasterLifeCyclePolicy.Builder()
             .policy(NEVER).build();
     private Future<?> currentLifecycleTask;
@@ -147,8 +177,71 @@ public class DefaultBroadcaster implements Broadcaster {
     protected int writeTimeoutInSecond = -1;
     protected AtmosphereResource noOpsResource;
     protected int waitTime = POLLING_DEFAULT;
+    protected boolean shareEncodedMessage = false;
+    protected boolean coalesceWrites = false;
+    protected int coalesceMaxMessages = 64;
+    protected int coalesceMaxBytes = 65536;
+    protected long coalesceMaxDelay = 0;
+    protected int maxPendingMessages = -1;
+    protected long maxPendingBytes = -1;
+    protected SLOW_CONSUMER_POLICY slowConsumerPolicy = SLOW_CONSUMER_POLICY.DROP_OLDEST;
+    protected int fanOutThreshold = -1;
+    protected int priorityMaxBurst = 16;
+    protected final ConcurrentHashMap<String, PendingWrites> pendingWrites = new ConcurrentHashMap<String, PendingWrites>();
+    private final AtomicLong[] slowConsumerPolicyCount = new AtomicLong[SLOW_CONSUMER_POLICY.values().length];
+    protected ConflationKey conflationKey;
+    private final AtomicLong conflatedCount = new AtomicLong();
+    protected boolean cacheOnFailure = false;
+    protected long cacheOnFailureWindow = TimeUnit.SECONDS.toMillis(60);
+    // The resources removed from this Broadcaster that may reconnect, see BROADCASTER_CACHE_ON_FAILURE
+    private final ConcurrentHashMap<String, Absent> absent = new ConcurrentHashMap<String, Absent>();
+    private CacheExpiry absentExpiry;
+    // Forget the removed resources once the cacheOnFailureWindow is over.
+    private final CacheExpiry.Expirable absentReaper = new CacheExpiry.Expirable() {
+        @Override
+        public long expire(long now) {
+            long next = -1;
+            Iterator<Absent> i = absent.values().iterator();
+            while (i.hasNext()) {
+                long deadline = i.next().time + cacheOnFailureWindow;
+                if (deadline <= now) {
+                    i.remove();
+                } else if (next < 0 || deadline < next) {
+                    next = deadline;
+                }
+            }
+            return next;
+        }
+    };
+
+    /**
+     * The policy applied when an {@link AtmosphereResource} can't keep up with the rate of broadcasted messages.
+     * See {@link ApplicationConfig#BROADCASTER_SLOW_CONSUMER_POLICY}
+     */
+    public enum SLOW_CONSUMER_POLICY {
+        /**
+         * Drop the oldest pending messages until the new message fits.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new message.
+         */
+        DROP_NEWEST,
+        /**
+         * Disconnect the {@link AtmosphereResource}. The pending messages and the new message are added to the
+         * {@link BroadcasterCache} so they can be retrieved when the client reconnects.
+         */
+        DISCONNECT,
+        /**
+         * Drop all the pending messages and only keep the new message.
+         */
+        CONFLATE
+    }
 
     public DefaultBroadcaster(){
+        for (int i = 0; i < slowConsumerPolicyCount.length; i++) {
+            slowConsumerPolicyCount[i] = new AtomicLong();
+        }
     }
 
     public Broadcaster initialize(String name, URI uri, AtmosphereConfig config) {
@@ -175,6 +268,84 @@ public class DefaultBroadcaster implements Broadcaster {
         if (s != null) {
             writeTimeoutInSecond = Integer.valueOf(s);
         }
+
+        s = config.getInitParameter(BROADCASTER_WRITE_STALL_TIME);
+        if (s != null) {
+            writeStallTime = Long.valueOf(s);
+        }
+
+        s = config.getInitParameter(SHARE_ENCODED_MESSAGE);
+        if (s != null) {
+            shareEncodedMessage = Boolean.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_COALESCE_WRITES);
+        if (s != null) {
+            coalesceWrites = Boolean.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_COALESCE_MAX_MESSAGES);
+        if (s != null) {
+            coalesceMaxMessages = Integer.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_COALESCE_MAX_BYTES);
+        if (s != null) {
+            coalesceMaxBytes = Integer.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_COALESCE_MAX_DELAY);
+        if (s != null) {
+            coalesceMaxDelay = Long.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_MAX_PENDING_MESSAGES);
+        if (s != null) {
+            maxPendingMessages = Integer.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_MAX_PENDING_BYTES);
+        if (s != null) {
+            maxPendingBytes = Long.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_SLOW_CONSUMER_POLICY);
+        if (s != null) {
+            slowConsumerPolicy = SLOW_CONSUMER_POLICY.valueOf(s.toUpperCase());
+        }
+
+        s = config.getInitParameter(BROADCASTER_CONFLATION_KEY);
+        if (s != null) {
+            try {
+                conflationKey = ConflationKey.class.cast(config.framework().newClassInstance(
+                        Thread.currentThread().getContextClassLoader().loadClass(s)));
+            } catch (Exception ex) {
+                logger.warn("Unable to create ConflationKey {}", s, ex);
+            }
+        }
+
+        s = config.getInitParameter(BROADCASTER_PRIORITY_MAX_BURST);
+        if (s != null) {
+            priorityMaxBurst = Integer.valueOf(s);
+        }
+        // NORMAL messages use the messages queue.
+        messageLanes = new PriorityLanes<Entry>(priorityMaxBurst,
+                new ConcurrentLinkedQueue<Entry>(), messages, new ConcurrentLinkedQueue<Entry>());
+
+        s = config.getInitParameter(BROADCASTER_FAN_OUT_THRESHOLD);
+        if (s != null) {
+            fanOutThreshold = Integer.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_CACHE_ON_FAILURE);
+        if (s != null) {
+            cacheOnFailure = Boolean.valueOf(s);
+        }
+
+        s = config.getInitParameter(BROADCASTER_CACHE_ON_FAILURE_WINDOW);
+        if (s != null) {
+            cacheOnFailureWindow = Long.valueOf(s);
+        }
         noOpsResource = AtmosphereResourceFactory.getDefault().create(config, "-1");
         if (outOfOrderBroadcastSupported.get()) {
             logger.trace("{} supports Out Of Order Broadcast: {}", name, outOfOrderBroadcastSupported.get());
@@ -228,9 +399,17 @@ public class DefaultBroadcaster implements Broadcaster {
             resources.clear();
             broadcastOnResume.clear();
             messages.clear();
+            if (messageLanes != null) {
+                messageLanes.clear();
+            }
             delayedBroadcast.clear();
             broadcasterListeners.clear();
-            writeQueues.clear();
+            clearWriteShards();
+            pendingWrites.clear();
+            absent.clear();
+            if (absentExpiry != null) {
+                absentExpiry.cancel(absentReaper);
+            }
         } catch (Throwable t) {
             logger.error("Unexpected exception during Broadcaster destroy {}", getID(), t);
         }
@@ -474,7 +653,17 @@ public class DefaultBroadcaster implements Broadcaster {
         return this;
     }
 
+    /**
+     * Return the {@link Runnable} delivering the queued messages. When {@link ApplicationConfig#OUT_OF_ORDER_BROADCAST}
+     * is not enabled, this is the {@link Mailbox}.
+     *
+     * @return the {@link Runnable} delivering the queued messages
+     */
     protected Runnable getBroadcastHandler() {
+        if (!outOfOrderBroadcastSupported.get()) {
+            return mailbox;
+        }
+
         return new Runnable() {
             public void run() {
                 while (!isDestroyed()) {
@@ -516,6 +705,61 @@ public class DefaultBroadcaster implements Broadcaster {
         };
     }
 
+    /**
+     * The ordered delivery of the {@link Broadcaster}'s messages. The mailbox is only submitted to the
+     * {@link BroadcasterConfig#getExecutorService()} when messages are queued, delivers a batch of messages and
+     * yields, so an idle {@link Broadcaster} never holds a thread.
+     */
+    protected final class Mailbox implements Runnable {
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        void schedule() {
+            if (!scheduled.getAndSet(true)) {
+                try {
+                    bc.getExecutorService().execute(this);
+                } catch (RejectedExecutionException ex) {
+                    scheduled.set(false);
+                    logger.trace("Unable to schedule the delivery of messages for Broadcaster {}", getID(), ex);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            // Messages are delivered by one thread at a time to preserve their order. The thread currently
+            // delivering will re-schedule the mailbox if messages are left.
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                Entry msg;
+                for (int i = 0; i < MAILBOX_BATCH && !isDestroyed() && (msg = messageLanes.poll()) != null; i++) {
+                    try {
+                        logger.trace("{} is about to broadcast {}", getID(), msg);
+                        push(msg);
+                    } catch (Throwable ex) {
+                        if (!started.get() || destroyed.get()) {
+                            logger.trace("Failed to deliver message on shutdown for Broadcaster {}", getID(), ex);
+                            return;
+                        } else {
+                            logger.warn("This message {} will be lost", msg);
+                            logger.debug("Failed to deliver message for Broadcaster {}", getID(), ex);
+                        }
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+
+            if (!isDestroyed() && !messageLanes.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
     protected Runnable getAsyncWriteHandler(final WriteQueue writeQueue) {
         return new Runnable() {
             public void run() {
@@ -523,15 +767,7 @@ public class DefaultBroadcaster implements Broadcaster {
                     AsyncWriteToken token = null;
                     try {
                         token = writeQueue.queue.poll(waitTime, TimeUnit.MILLISECONDS);
-                        if (token == null && !outOfOrderBroadcastSupported.get()) {
-                            synchronized (writeQueue) {
-                                if (writeQueue.queue.size() == 0) {
-                                    writeQueue.monitored.set(false);
-                                    writeQueues.remove(writeQueue.uuid);
-                                    return;
-                                }
-                            }
-                        } else if (token == null) {
+                        if (token == null) {
                             return;
                         }
                     } catch (InterruptedException ex) {
@@ -544,28 +780,14 @@ public class DefaultBroadcaster implements Broadcaster {
                         }
                     }
 
-                    // Shield us from https://github.com/Atmosphere/atmosphere/issues/1187
                     if (token != null) {
-                        synchronized (token.resource) {
-                            try {
-                                logger.trace("About to write to {}", token.resource);
-                                executeAsyncWrite(token);
-                            } catch (Throwable ex) {
-                                if (!started.get() || destroyed.get()) {
-                                    logger.trace("Failed to execute a write operation. Broadcaster is destroyed or not yet started for Broadcaster {}", getID(), ex);
-                                    return;
-                                } else {
-                                    if (token != null) {
-                                        logger.warn("This message {} will be lost for AtmosphereResource {}, adding it to the BroadcasterCache",
-                                                token.originalMessage, token.resource != null ? token.resource.uuid() : "null");
-                                        cacheLostMessage(token.resource, token, true);
-                                    }
-                                    logger.debug("Failed to execute a write operation for Broadcaster {}", getID(), ex);
-                                }
-                            } finally {
-                                if (!bc.getAsyncWriteService().isShutdown() && outOfOrderBroadcastSupported.get()) {
-                                    return;
-                                }
+                        try {
+                            if (!write(token)) {
+                                return;
+                            }
+                        } finally {
+                            if (!bc.getAsyncWriteService().isShutdown() && outOfOrderBroadcastSupported.get()) {
+                                return;
                             }
                         }
                     }
@@ -574,6 +796,88 @@ public class DefaultBroadcaster implements Broadcaster {
         };
     }
 
+    /**
+     * Execute the write operation associated with the {@link AsyncWriteToken}. If the write fails, the message
+     * is added to the {@link BroadcasterCache}.
+     *
+     * @param token an {@link AsyncWriteToken}
+     * @return false if the {@link Broadcaster} has been destroyed or is not started.
+     */
+    protected boolean write(AsyncWriteToken token) {
+        // Shield us from https://github.com/Atmosphere/atmosphere/issues/1187
+        synchronized (token.resource) {
+            try {
+                logger.trace("About to write to {}", token.resource);
+                executeAsyncWrite(token);
+            } catch (Throwable ex) {
+                if (!started.get() || destroyed.get()) {
+                    logger.trace("Failed to execute a write operation. Broadcaster is destroyed or not yet started for Broadcaster {}", getID(), ex);
+                    return false;
+                } else {
+                    logger.warn("This message {} will be lost for AtmosphereResource {}, adding it to the BroadcasterCache",
+                            token.originalMessage, token.resource != null ? token.resource.uuid() : "null");
+                    cacheLostMessage(token.resource, token, true);
+                    logger.debug("Failed to execute a write operation for Broadcaster {}", getID(), ex);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the {@link AsyncWriteToken}s queued for the same {@link AtmosphereResource}, in order, coalescing them into
+     * as few write operations as {@link ApplicationConfig#BROADCASTER_COALESCE_MAX_MESSAGES} and
+     * {@link ApplicationConfig#BROADCASTER_COALESCE_MAX_BYTES} allow. A message which is already a {@link List} is
+     * always written alone.
+     *
+     * @param tokens the {@link AsyncWriteToken}s of a single {@link AtmosphereResource}
+     * @return false if the {@link Broadcaster} has been destroyed or is not started.
+     */
+    protected boolean writeCoalesced(List<AsyncWriteToken> tokens) {
+        List<AsyncWriteToken> batch = new ArrayList<AsyncWriteToken>();
+        int bytes = 0;
+        for (AsyncWriteToken token : tokens) {
+            if (token.msg instanceof List) {
+                if (!writeBatch(batch) || !write(token)) {
+                    return false;
+                }
+                bytes = 0;
+                continue;
+            }
+
+            int size = sizeOf(token.msg);
+            if (!batch.isEmpty() && (batch.size() >= coalesceMaxMessages || bytes + size > coalesceMaxBytes)) {
+                if (!writeBatch(batch)) {
+                    return false;
+                }
+                bytes = 0;
+            }
+            batch.add(token);
+            bytes += size;
+        }
+        return writeBatch(batch);
+    }
+
+    private boolean writeBatch(List<AsyncWriteToken> batch) {
+        boolean written = true;
+        if (batch.size() == 1) {
+            written = write(batch.get(0));
+        } else if (batch.size() > 1) {
+            written = write(new AsyncWriteToken(batch));
+        }
+        batch.clear();
+        return written;
+    }
+
+    private static int sizeOf(Object message) {
+        if (message instanceof String) {
+            return ((String) message).length();
+        } else if (message instanceof byte[]) {
+            return ((byte[]) message).length;
+        }
+        return 0;
+    }
+
     protected void start() {
         if (!initialized.get()) {
             logger.warn("Broadcaster {} not initialized", getID());
@@ -670,6 +974,15 @@ public class DefaultBroadcaster implements Broadcaster {
             }
         }
 
+        if (entry.batch) {
+            try {
+                deliverBatch(entry);
+            } catch (InterruptedException ex) {
+                logger.debug(ex.getMessage(), ex);
+            }
+            return;
+        }
+
         Object finalMsg = callable(entry.message);
         if (finalMsg == null) {
             logger.error("Callable exception. Please catch all exceptions from your callable. Message {} will be lost and all AtmosphereResource " +
@@ -712,8 +1025,10 @@ public class DefaultBroadcaster implements Broadcaster {
         entry.message = finalMsg;
 
         // We cache first, and if the broadcast succeed, we will remove it.
-        AtmosphereResource cache = entry.type != Entry.TYPE.RESOURCE ? null : entry.resource;
-        entry.cache = bc.getBroadcasterCache().addToCache(getID(), cache, new BroadcastMessage(entry.originalMessage));
+        // The Entry may already have been cached, see ShardedBroadcaster.
+        if (entry.cache == null) {
+            entry.cache = cache(entry.originalMessage, entry.type != Entry.TYPE.RESOURCE ? null : entry.resource);
+        }
 
         if (resources.isEmpty()) {
             entryDone(entry.future);
@@ -729,8 +1044,17 @@ public class DefaultBroadcaster implements Broadcaster {
 
             boolean hasFilters = bc.hasPerRequestFilters();
             Object beforeProcessingMessage = entry.message;
+            // All resources share the same encoded bytes, unless a PerRequestBroadcastFilter transform the message.
+            if (shareEncodedMessage && entry.type != Entry.TYPE.RESOURCE) {
+                entry.encoded = new EncodedMessage(beforeProcessingMessage);
+            }
             switch (entry.type) {
                 case ALL:
+                    if (fanOutThreshold > 0 && resources.size() > fanOutThreshold) {
+                        fanOut(entry, resources.snapshot());
+                        break;
+                    }
+
                     for (AtmosphereResource r : resources) {
                         entry.message = beforeProcessingMessage;
                         boolean deliverMessage = perRequestFilter(r, entry);
@@ -783,40 +1107,664 @@ public class DefaultBroadcaster implements Broadcaster {
         }
     }
 
+    /**
+     * Deliver a batch of messages, see {@link #broadcastAll(List)}. Every message is cached individually, and the
+     * {@link AtmosphereResource}s are visited once for the whole batch.
+     *
+     * @param entry an {@link Entry} whose message and original message are the {@link List}s of messages
+     * @throws InterruptedException
+     */
+    protected void deliverBatch(Entry entry) throws InterruptedException {
+        List<?> batch = (List<?>) entry.message;
+        List<?> originals = (List<?>) entry.originalMessage;
+        int size = batch.size();
+
+        Object[] messages = new Object[size];
+        Object[] originalMessages = new Object[size];
+        CacheMessage[] caches = new CacheMessage[size];
+        for (int i = 0; i < size; i++) {
+            messages[i] = callable(batch.get(i));
+            originalMessages[i] = originals.get(i) != batch.get(i) ? callable(originals.get(i)) : messages[i];
+            if (messages[i] == null || originalMessages[i] == null) {
+                logger.debug("Broadcasted message was null {}", batch.get(i));
+                continue;
+            }
+            caches[i] = cache(originalMessages[i], null);
+        }
+
+        if (resources.isEmpty() || !entry.writeLocally) {
+            entryDone(entry.future);
+            return;
+        }
+
+        boolean hasFilters = bc.hasPerRequestFilters();
+        for (AtmosphereResource r : resources) {
+            List<AsyncWriteToken> tokens = new ArrayList<AsyncWriteToken>(size);
+            for (int i = 0; i < size; i++) {
+                if (messages[i] == null || originalMessages[i] == null) {
+                    continue;
+                }
+
+                Object message = messages[i];
+                if (hasFilters) {
+                    Entry e = new Entry(message, r, entry.future, originalMessages[i]);
+                    if (!perRequestFilter(r, e) || e.message == null) {
+                        logger.debug("Skipping broadcast delivery {} for resource {} ", e.message, r.uuid());
+                        bc.getBroadcasterCache().clearCache(getID(), r, caches[i]);
+                        continue;
+                    }
+                    message = e.message;
+                }
+                tokens.add(new AsyncWriteToken(r, message, null, originalMessages[i], caches[i]));
+            }
+
+            if (tokens.isEmpty()) {
+                entryDone(entry.future);
+                continue;
+            }
+
+            // The batch's future is completed once per AtmosphereResource, like for a single message.
+            AsyncWriteToken w = tokens.size() == 1 ? tokens.get(0) : new AsyncWriteToken(tokens);
+            w.future = entry.future;
+            w.priority = entry.priority;
+            queueWriteIO(r, w);
+        }
+    }
+
     protected void queueWriteIO(AtmosphereResource r, Entry entry) throws InterruptedException {
+        AsyncWriteToken w = new AsyncWriteToken(r, entry.message, entry.future, entry.originalMessage, entry.cache, entry.encoded);
+        w.priority = entry.priority;
+        queueWriteIO(r, w);
+    }
+
+    protected void queueWriteIO(AtmosphereResource r, AsyncWriteToken w) throws InterruptedException {
         // The onStateChange/onRequest may change the isResumed value, hence we need to make sure only one thread flip
         // the switch to garantee the Entry will be cached in the order it was broadcasted.
         // Without synchronizing we may end up with a out of order BroadcasterCache queue.
         if (!bc.getBroadcasterCache().getClass().equals(BroadcasterCache.DEFAULT.getClass().getName())) {
             if (r.isResumed() || r.isCancelled()) {
-                logger.trace("AtmosphereResource {} has been resumed or cancelled, unable to Broadcast message {}", r.uuid(), entry.message);
+                logger.trace("AtmosphereResource {} has been resumed or cancelled, unable to Broadcast message {}", r.uuid(), w.msg);
+                // The message wasn't cached before the write.
+                if (cacheOnFailure) {
+                    cacheLostMessage(r, w, true);
+                }
                 return;
             }
         }
 
-        AsyncWriteToken w = new AsyncWriteToken(r, entry.message, entry.future, entry.originalMessage, entry.cache);
         if (!outOfOrderBroadcastSupported.get()) {
-            WriteQueue writeQueue = writeQueues.get(r.uuid());
-            if (writeQueue == null) {
-                writeQueue = new WriteQueue(r.uuid());
-                writeQueues.put(r.uuid(), writeQueue);
+            logger.trace("Broadcaster {} is about to queueWriteIO for AtmosphereResource {}", name, r.uuid());
+            if ((maxPendingMessages > 0 || maxPendingBytes > 0 || conflationKey != null) && !admit(r, w)) {
+                return;
             }
+            writeShard(r.uuid()).offer(w);
+        } else {
+            uniqueWriteQueue.queue.offer(w);
+        }
+    }
 
-            writeQueue.queue.put(w);
-            synchronized (writeQueue) {
-                if (!writeQueue.monitored.getAndSet(true)) {
-                    logger.trace("Broadcaster {} is about to queueWriteIO for AtmosphereResource {}", name, r.uuid());
-                    bc.getAsyncWriteService().submit(getAsyncWriteHandler(writeQueue));
+    /**
+     * Return the {@link WriteShard} associated with an {@link AtmosphereResource#uuid()}. All write operations for
+     * an {@link AtmosphereResource} are always executed, in order, by the same {@link WriteShard}.
+     *
+     * @param uuid an {@link AtmosphereResource#uuid()}
+     * @return a {@link WriteShard}
+     */
+    protected WriteShard writeShard(String uuid) {
+        AtomicReferenceArray<WriteShard> shards = writeShards;
+        if (shards == null) {
+            synchronized (this) {
+                shards = writeShards;
+                if (shards == null) {
+                    shards = new AtomicReferenceArray<WriteShard>(writeShardsCount());
+                    writeShards = shards;
                 }
             }
+        }
+
+        int i = (uuid.hashCode() & 0x7fffffff) % shards.length();
+        WriteShard shard = shards.get(i);
+        if (shard == null) {
+            shard = new WriteShard();
+            if (!shards.compareAndSet(i, null, shard)) {
+                shard = shards.get(i);
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Return the number of {@link WriteShard}s. Unless {@link #writeShardsCount} is set, there is one shard per thread
+     * of the {@link BroadcasterConfig#getAsyncWriteService()}, up to {@link #reactiveThreadsCount()}, as more shards
+     * wouldn't write more in parallel.
+     *
+     * @return the number of {@link WriteShard}s
+     */
+    protected int writeShardsCount() {
+        if (writeShardsCount > 0) {
+            return writeShardsCount;
+        }
+
+        int count = reactiveThreadsCount();
+        ExecutorService s = bc.getAsyncWriteService();
+        if (s != null && ThreadPoolExecutor.class.isAssignableFrom(s.getClass())) {
+            count = Math.min(count, Math.max(1, ThreadPoolExecutor.class.cast(s).getMaximumPoolSize()));
+        }
+        return count;
+    }
+
+    private void clearWriteShards() {
+        AtomicReferenceArray<WriteShard> shards = writeShards;
+        if (shards != null) {
+            for (int i = 0; i < shards.length(); i++) {
+                WriteShard shard = shards.get(i);
+                if (shard != null) {
+                    shard.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * A lock-free, multiple producers/single consumer queue of {@link AsyncWriteToken}. A shard is only submitted to the
+     * {@link BroadcasterConfig#getAsyncWriteService()} when it has pending writes, and drains its queue until empty
+     * instead of waiting for new writes. When {@link ApplicationConfig#BROADCASTER_COALESCE_WRITES} is enabled, the
+     * pending writes are grouped per {@link AtmosphereResource} and coalesced.
+     * <p/>
+     * When a write takes longer than {@link ApplicationConfig#BROADCASTER_WRITE_STALL_TIME}, the next offered write hands
+     * the shard off to a new {@link Drainer}, so the other {@link AtmosphereResource}s aren't blocked behind the stalled
+     * one. The writes for the stalled {@link AtmosphereResource} are set aside, and written in order by the stalled
+     * {@link Drainer} once its write returns.
+     */
+    protected final class WriteShard {
+        final PriorityLanes<AsyncWriteToken> queue = new PriorityLanes<AsyncWriteToken>(priorityMaxBurst,
+                new ConcurrentLinkedQueue<AsyncWriteToken>(),
+                new ConcurrentLinkedQueue<AsyncWriteToken>(),
+                new ConcurrentLinkedQueue<AsyncWriteToken>());
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        // The writes set aside for the AtmosphereResources owned by a stalled Drainer. Guarded by this.
+        private final Map<AtmosphereResource, List<AsyncWriteToken>> stalled = new HashMap<AtmosphereResource, List<AsyncWriteToken>>();
+        private volatile Drainer drainer = new Drainer();
+        private final Runnable delayedSubmit = new Runnable() {
+            @Override
+            public void run() {
+                submit();
+            }
+        };
+
+        void offer(AsyncWriteToken w) {
+            queue.offer(w.priority.ordinal(), w);
+            schedule();
+            if (writeStallTime > 0) {
+                handOff();
+            }
+        }
+
+        private void schedule() {
+            if (!scheduled.getAndSet(true)) {
+                if (coalesceWrites && coalesceMaxDelay > 0) {
+                    // Give the following messages a chance to be coalesced with this one.
+                    try {
+                        bc.getScheduledExecutorService().schedule(delayedSubmit, coalesceMaxDelay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException ex) {
+                        scheduled.set(false);
+                        logger.trace("Unable to schedule write operations for Broadcaster {}", getID(), ex);
+                    }
+                } else {
+                    submit();
+                }
+            }
+        }
+
+        private void submit() {
+            try {
+                bc.getAsyncWriteService().execute(drainer);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                logger.trace("Unable to schedule write operations for Broadcaster {}", getID(), ex);
+            }
+        }
+
+        // Replace the Drainer if its current write has stalled.
+        private void handOff() {
+            Drainer d = drainer;
+            if (!d.isStalled()) {
+                return;
+            }
+
+            AtmosphereResource r;
+            synchronized (this) {
+                if (d != drainer || !d.isStalled()) {
+                    return;
+                }
+
+                r = d.writing;
+                d.orphans = new ArrayList<AtmosphereResource>();
+                d.orphans.add(r);
+                stalled.put(r, new ArrayList<AsyncWriteToken>());
+                // The writes the stalled Drainer has already polled must not be overtaken.
+                if (d.batch != null) {
+                    for (Map.Entry<AtmosphereResource, List<AsyncWriteToken>> e : d.batch.entrySet()) {
+                        List<AsyncWriteToken> tokens = stalled.get(e.getKey());
+                        if (tokens != null) {
+                            tokens.addAll(e.getValue());
+                        } else {
+                            stalled.put(e.getKey(), e.getValue());
+                            d.orphans.add(e.getKey());
+                        }
+                    }
+                    d.batch.clear();
+                }
+                drainer = new Drainer();
+            }
+            logger.debug("Write to AtmosphereResource {} stalled, handing off the other writes of Broadcaster {}",
+                    r.uuid(), getID());
+            submit();
+        }
+
+        void clear() {
+            queue.clear();
+            synchronized (this) {
+                stalled.clear();
+            }
+        }
+
+        public int size() {
+            return queue.size();
+        }
+
+        /**
+         * Drain the {@link WriteShard} until it is empty or handed off.
+         */
+        final class Drainer implements Runnable {
+            // The current write. Set and cleared under the WriteShard's lock.
+            private volatile AtmosphereResource writing;
+            private volatile long writeStart;
+            // The writes polled but not yet written, when coalescing. Guarded by the WriteShard.
+            private Map<AtmosphereResource, List<AsyncWriteToken>> batch;
+            // The AtmosphereResources left to this Drainer when handed off. Guarded by the WriteShard.
+            private List<AtmosphereResource> orphans;
+
+            boolean isStalled() {
+                return writing != null && System.currentTimeMillis() - writeStart > writeStallTime;
+            }
+
+            @Override
+            public void run() {
+                for (; ; ) {
+                    boolean drained = coalesceWrites ? drainCoalesced() : drain();
+                    List<AtmosphereResource> handedOff;
+                    synchronized (WriteShard.this) {
+                        handedOff = orphans;
+                    }
+
+                    if (handedOff != null) {
+                        writeStalled(handedOff);
+                        return;
+                    }
+
+                    if (!drained) {
+                        clear();
+                        scheduled.set(false);
+                        return;
+                    }
+
+                    scheduled.set(false);
+                    // A producer may have added a token after the last poll but before the flag was released.
+                    if (queue.isEmpty() || scheduled.getAndSet(true)) {
+                        return;
+                    }
+                }
+            }
+
+            private boolean drain() {
+                AsyncWriteToken token;
+                while ((token = queue.poll()) != null) {
+                    if (!token.claim()) {
+                        continue;
+                    }
+
+                    if (isDestroyed() || !write(token.resource, Collections.singletonList(token))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            private boolean drainCoalesced() {
+                while (!queue.isEmpty()) {
+                    LinkedHashMap<AtmosphereResource, List<AsyncWriteToken>> pending = new LinkedHashMap<AtmosphereResource, List<AsyncWriteToken>>();
+                    AsyncWriteToken token;
+                    int drained = 0;
+                    while (drained++ < MAX_COALESCED_DRAIN && (token = queue.poll()) != null) {
+                        if (!token.claim()) {
+                            continue;
+                        }
+
+                        List<AsyncWriteToken> tokens = pending.get(token.resource);
+                        if (tokens == null) {
+                            tokens = new ArrayList<AsyncWriteToken>();
+                            pending.put(token.resource, tokens);
+                        }
+                        tokens.add(token);
+                    }
+
+                    synchronized (WriteShard.this) {
+                        batch = pending;
+                    }
+
+                    for (; ; ) {
+                        AtmosphereResource r;
+                        List<AsyncWriteToken> tokens;
+                        synchronized (WriteShard.this) {
+                            Iterator<Map.Entry<AtmosphereResource, List<AsyncWriteToken>>> i = pending.entrySet().iterator();
+                            if (!i.hasNext()) {
+                                batch = null;
+                                break;
+                            }
+                            Map.Entry<AtmosphereResource, List<AsyncWriteToken>> e = i.next();
+                            i.remove();
+                            r = e.getKey();
+                            tokens = e.getValue();
+                        }
+
+                        if (isDestroyed() || !write(r, tokens)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+
+            // Return false if the Broadcaster is destroyed or the shard has been handed off.
+            private boolean write(AtmosphereResource r, List<AsyncWriteToken> tokens) {
+                synchronized (WriteShard.this) {
+                    List<AsyncWriteToken> s = stalled.get(r);
+                    if (s != null) {
+                        s.addAll(tokens);
+                        return true;
+                    }
+                    writeStart = System.currentTimeMillis();
+                    writing = r;
+                }
+
+                boolean written = coalesceWrites ? writeCoalesced(tokens) : DefaultBroadcaster.this.write(tokens.get(0));
+                synchronized (WriteShard.this) {
+                    writing = null;
+                    return written && orphans == null;
+                }
+            }
+
+            private void writeStalled(List<AtmosphereResource> resources) {
+                for (AtmosphereResource r : resources) {
+                    for (; ; ) {
+                        List<AsyncWriteToken> tokens;
+                        synchronized (WriteShard.this) {
+                            tokens = stalled.get(r);
+                            if (tokens == null || tokens.isEmpty() || isDestroyed()) {
+                                stalled.remove(r);
+                                break;
+                            }
+                            stalled.put(r, new ArrayList<AsyncWriteToken>());
+                        }
+
+                        if (coalesceWrites) {
+                            writeCoalesced(tokens);
+                        } else {
+                            for (AsyncWriteToken t : tokens) {
+                                DefaultBroadcaster.this.write(t);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Account for a new {@link AsyncWriteToken} pending for an {@link AtmosphereResource}, applying the
+     * {@link SLOW_CONSUMER_POLICY} if the {@link AtmosphereResource} has reached
+     * {@link ApplicationConfig#BROADCASTER_MAX_PENDING_MESSAGES} or {@link ApplicationConfig#BROADCASTER_MAX_PENDING_BYTES}.
+     *
+     * @param r an {@link AtmosphereResource}
+     * @param w the new {@link AsyncWriteToken}
+     * @return true if the {@link AsyncWriteToken} must be queued.
+     */
+    protected boolean admit(AtmosphereResource r, AsyncWriteToken w) {
+        PendingWrites pending = pendingWrites.get(r.uuid());
+        if (pending == null) {
+            pending = new PendingWrites();
+            PendingWrites previous = pendingWrites.putIfAbsent(r.uuid(), pending);
+            if (previous != null) {
+                pending = previous;
+            }
+        }
+
+        w.size = sizeOf(w.msg);
+        if (conflationKey != null && w.coalesced == null) {
+            w.key = conflationKey.key(r, w.msg);
+            AsyncWriteToken previous = w.key == null ? null : pending.keyed.get(w.key);
+            if (previous != null && pending.claim(previous)) {
+                logger.trace("Replacing message {} with {} for AtmosphereResource {}", previous.msg, w.msg, r.uuid());
+                conflatedCount.incrementAndGet();
+                dropWrite(previous);
+            }
+        }
+
+        if (isOverLimit(pending, w.size)) {
+            logger.trace("AtmosphereResource {} is too slow, applying {}", r.uuid(), slowConsumerPolicy);
+            slowConsumerPolicyCount[slowConsumerPolicy.ordinal()].incrementAndGet();
+            if (!onSlowConsumer(r, pending, w)) {
+                return false;
+            }
+        }
+        pending.add(w);
+        return true;
+    }
+
+    /**
+     * Apply the {@link SLOW_CONSUMER_POLICY}.
+     *
+     * @param r       the slow {@link AtmosphereResource}
+     * @param pending the {@link AsyncWriteToken}s pending for the {@link AtmosphereResource}
+     * @param w       the new {@link AsyncWriteToken}
+     * @return true if the new {@link AsyncWriteToken} must be queued.
+     */
+    protected boolean onSlowConsumer(final AtmosphereResource r, PendingWrites pending, AsyncWriteToken w) {
+        AsyncWriteToken t;
+        switch (slowConsumerPolicy) {
+            case DROP_OLDEST:
+                while (isOverLimit(pending, w.size) && (t = pending.claimOldest()) != null) {
+                    dropWrite(t);
+                }
+                return true;
+            case DROP_NEWEST:
+                dropWrite(w);
+                return false;
+            case CONFLATE:
+                while ((t = pending.claimOldest()) != null) {
+                    dropWrite(t);
+                }
+                return true;
+            case DISCONNECT:
+                while ((t = pending.claimOldest()) != null) {
+                    loseWrite(t);
+                }
+                loseWrite(w);
+                removeAtmosphereResource(r);
+                Runnable close = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.close();
+                        } catch (Throwable t) {
+                            logger.trace("Unable to close slow AtmosphereResource {}", r.uuid(), t);
+                        }
+                    }
+                };
+                try {
+                    bc.getAsyncWriteService().execute(close);
+                } catch (RejectedExecutionException ex) {
+                    close.run();
+                }
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isOverLimit(PendingWrites pending, int size) {
+        int messages = pending.messages.get();
+        return (maxPendingMessages > 0 && messages >= maxPendingMessages)
+                || (maxPendingBytes > 0 && messages > 0 && pending.bytes.get() + size > maxPendingBytes);
+    }
+
+    private void dropWrite(AsyncWriteToken t) {
+        logger.trace("Dropping message {} for AtmosphereResource {}", t.msg, t.resource.uuid());
+        clearCache(t.resource, t);
+        entryDone(t.future);
+    }
+
+    private void loseWrite(AsyncWriteToken t) {
+        clearCache(t.resource, t);
+        cacheLostMessage(t.resource, t, true);
+        entryDone(t.future);
+    }
+
+    private void clearCache(AtmosphereResource r, AsyncWriteToken token) {
+        if (token.coalesced != null) {
+            for (AsyncWriteToken t : token.coalesced) {
+                bc.getBroadcasterCache().clearCache(getID(), r, t.cache);
+            }
         } else {
-            uniqueWriteQueue.queue.offer(w);
+            bc.getBroadcasterCache().clearCache(getID(), r, token.cache);
+        }
+    }
+
+    /**
+     * Return the number of time a {@link SLOW_CONSUMER_POLICY} has been applied by this {@link Broadcaster}.
+     *
+     * @param policy a {@link SLOW_CONSUMER_POLICY}
+     * @return the number of time the {@link SLOW_CONSUMER_POLICY} has been applied
+     */
+    public long slowConsumerPolicyCount(SLOW_CONSUMER_POLICY policy) {
+        return slowConsumerPolicyCount[policy.ordinal()].get();
+    }
+
+    /**
+     * Return the number of pending messages replaced by a message with the same {@link ConflationKey}.
+     *
+     * @return the number of pending messages replaced by a message with the same {@link ConflationKey}
+     */
+    public long conflatedCount() {
+        return conflatedCount.get();
+    }
+
+    /**
+     * Set the {@link ConflationKey} used to replace pending messages. See {@link ApplicationConfig#BROADCASTER_CONFLATION_KEY}
+     *
+     * @param conflationKey a {@link ConflationKey}, or null to disable conflation
+     */
+    public void setConflationKey(ConflationKey conflationKey) {
+        this.conflationKey = conflationKey;
+    }
+
+    public ConflationKey getConflationKey() {
+        return conflationKey;
+    }
+
+    // An AtmosphereResource removed from this Broadcaster, which may reconnect.
+    private synchronized CacheExpiry absentExpiry() {
+        if (absentExpiry == null) {
+            absentExpiry = config == null ? CacheExpiry.getDefault() : CacheExpiry.get(config);
+        }
+        return absentExpiry;
+    }
+
+    private final static class Absent {
+        final AtmosphereResource resource;
+        final long time = System.currentTimeMillis();
+
+        Absent(AtmosphereResource resource) {
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * The {@link AsyncWriteToken}s queued, but not yet written, for an {@link AtmosphereResource}. A token is either
+     * written or dropped, whichever claims it first. Claimed tokens are only removed from the queue once they reach its
+     * head, so claiming never scans the queue.
+     */
+    protected final static class PendingWrites {
+        final ConcurrentLinkedQueue<AsyncWriteToken> tokens = new ConcurrentLinkedQueue<AsyncWriteToken>();
+        final AtomicBoolean purging = new AtomicBoolean();
+        final AtomicInteger messages = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final ConcurrentHashMap<Object, AsyncWriteToken> keyed = new ConcurrentHashMap<Object, AsyncWriteToken>();
+
+        void add(AsyncWriteToken w) {
+            w.claimed = new AtomicBoolean();
+            w.pending = this;
+            messages.incrementAndGet();
+            bytes.addAndGet(w.size);
+            if (w.key != null) {
+                keyed.put(w.key, w);
+            }
+            tokens.offer(w);
+        }
+
+        boolean claim(AsyncWriteToken w) {
+            if (!w.claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            if (w.key != null) {
+                keyed.remove(w.key, w);
+            }
+            messages.decrementAndGet();
+            bytes.addAndGet(-w.size);
+            purge();
+            return true;
+        }
+
+        AsyncWriteToken claimOldest() {
+            AsyncWriteToken w;
+            while ((w = tokens.peek()) != null) {
+                if (claim(w)) {
+                    return w;
+                }
+                // Claimed by the WriteShard.
+                purge();
+            }
+            return null;
+        }
+
+        // Remove the claimed tokens at the head of the queue. Only one thread purges at a time, so the token removed is
+        // always the head and is found without scanning.
+        private void purge() {
+            if (!purging.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                AsyncWriteToken w;
+                while ((w = tokens.peek()) != null && w.claimed.get()) {
+                    tokens.remove(w);
+                }
+            } finally {
+                purging.set(false);
+            }
+        }
+
+        public int messages() {
+            return messages.get();
+        }
+
+        public long bytes() {
+            return bytes.get();
         }
     }
 
     private final static class WriteQueue {
         final BlockingQueue<AsyncWriteToken> queue = new LinkedBlockingQueue<AsyncWriteToken>();
-        final AtomicBoolean monitored = new AtomicBoolean();
         final String uuid;
 
         private WriteQueue(String uuid) {
@@ -824,6 +1772,81 @@ public class DefaultBroadcaster implements Broadcaster {
         }
     }
 
+    /**
+     * Deliver an {@link Entry} to a large number of {@link AtmosphereResource}s in parallel. The calling thread
+     * processes chunks as well, and only returns once every chunk has been delivered, so the next {@link Entry} can't
+     * be delivered to an {@link AtmosphereResource} before this one.
+     *
+     * @param entry   the {@link Entry} to deliver
+     * @param targets the {@link AtmosphereResource}s
+     * @throws InterruptedException
+     */
+    protected void fanOut(Entry entry, List<AtmosphereResource> targets) throws InterruptedException {
+        FanOut fanOut = new FanOut(entry, targets);
+        // A SimpleBroadcaster has no ExecutorService, every chunk is then delivered by the calling thread.
+        ExecutorService executor = bc.getExecutorService();
+        int helpers = executor == null ? 0 : Math.min(fanOut.chunks, reactiveThreadsCount()) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(fanOut);
+            } catch (RejectedExecutionException ex) {
+                logger.trace("Unable to fan out {} for Broadcaster {}", entry.message, getID(), ex);
+                break;
+            }
+        }
+        fanOut.run();
+        fanOut.done.await();
+    }
+
+    private final class FanOut implements Runnable {
+        private final Entry entry;
+        private final List<AtmosphereResource> targets;
+        private final boolean hasFilters = bc.hasPerRequestFilters();
+        private final int chunks;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private final CountDownLatch done;
+
+        private FanOut(Entry entry, List<AtmosphereResource> targets) {
+            this.entry = entry;
+            this.targets = targets;
+            this.chunks = (targets.size() + fanOutThreshold - 1) / fanOutThreshold;
+            this.done = new CountDownLatch(chunks);
+        }
+
+        @Override
+        public void run() {
+            int chunk;
+            while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                try {
+                    int end = Math.min((chunk + 1) * fanOutThreshold, targets.size());
+                    for (int i = chunk * fanOutThreshold; i < end; i++) {
+                        deliver(targets.get(i));
+                    }
+                } catch (InterruptedException ex) {
+                    logger.debug(ex.getMessage(), ex);
+                } catch (Throwable t) {
+                    logger.warn("Unable to deliver message {} for Broadcaster {}", entry.message, getID(), t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        private void deliver(AtmosphereResource r) throws InterruptedException {
+            // The shared Entry is never modified, a PerRequestBroadcastFilter operates on a copy.
+            Entry e = hasFilters ? new Entry(r, entry) : entry;
+            if (!perRequestFilter(r, e) || e.message == null) {
+                logger.debug("Skipping broadcast delivery {} for resource {} ", e.message, r.uuid());
+                bc.getBroadcasterCache().clearCache(getID(), r, e.cache);
+                return;
+            }
+
+            if (e.writeLocally) {
+                queueWriteIO(r, e);
+            }
+        }
+    }
+
     protected boolean perRequestFilter(AtmosphereResource r, Entry msg) {
         // A broadcaster#broadcast(msg,Set) may contains null value.
         if (r == null) {
@@ -841,7 +1864,7 @@ public class DefaultBroadcaster implements Broadcaster {
         return true;
     }
 
-    private Object callable(Object msg) {
+    protected Object callable(Object msg) {
         if (Callable.class.isAssignableFrom(msg.getClass())) {
             try {
                 return Callable.class.cast(msg).call();
@@ -870,14 +1893,21 @@ public class DefaultBroadcaster implements Broadcaster {
             if (!isAtmosphereResourceValid(r)) {
                 logger.debug("AtmosphereResource {} state is invalid for Broadcaster {}. ", r.uuid(), name);
                 removeAtmosphereResource(r, false);
+                // The message wasn't cached before the write.
+                if (cacheOnFailure) {
+                    cacheLostMessage(r, token, true);
+                }
                 return;
             }
 
-            bc.getBroadcasterCache().clearCache(getID(), r, token.cache);
+            clearCache(r, token);
             try {
                 request.setAttribute(getID(), token.future);
                 request.setAttribute(MAX_INACTIVE, System.currentTimeMillis());
                 request.setAttribute(ASYNC_TOKEN, token);
+                if (shareEncodedMessage) {
+                    request.setAttribute(FrameworkConfig.ENCODED_MESSAGE, token.encoded);
+                }
             } catch (Throwable t) {
                 logger.debug("Invalid AtmosphereResource state {}. The connection has been remotely" +
                         " closed and message {} will be added to the configured BroadcasterCache for later retrieval", r.uuid(), event.getMessage());
@@ -919,7 +1949,17 @@ public class DefaultBroadcaster implements Broadcaster {
                 }
             }
 
-            entryDone(token.future);
+            if (token.coalesced != null) {
+                for (AsyncWriteToken t : token.coalesced) {
+                    entryDone(t.future);
+                }
+                // The future of a batch
+                if (token.future != null) {
+                    token.future.done();
+                }
+            } else {
+                entryDone(token.future);
+            }
 
             if (lostCandidate) {
                 cacheLostMessage(r, token, true);
@@ -1173,6 +2213,44 @@ public class DefaultBroadcaster implements Broadcaster {
         cacheLostMessage(r, token, false);
     }
 
+    /**
+     * Cache a message before it is delivered. The message is then removed from the cache for every
+     * {@link AtmosphereResource} it is delivered to.
+     * <p/>
+     * When {@link ApplicationConfig#BROADCASTER_CACHE_ON_FAILURE} is set and resources are connected, the message is
+     * only cached for the resources removed from this Broadcaster during the last
+     * {@link ApplicationConfig#BROADCASTER_CACHE_ON_FAILURE_WINDOW} milliseconds, as they may reconnect. The connected
+     * resources are only cached for when their write fails, see
+     * {@link #cacheLostMessage(AtmosphereResource, AsyncWriteToken, boolean)}.
+     *
+     * @param originalMessage the message
+     * @param r               the {@link AtmosphereResource} the message is for, or null for all
+     * @return the {@link CacheMessage} to clear once delivered, or null
+     */
+    protected CacheMessage cache(Object originalMessage, AtmosphereResource r) {
+        if (!cacheOnFailure || resources.isEmpty()) {
+            return bc.getBroadcasterCache().addToCache(getID(), r, new BroadcastMessage(originalMessage));
+        }
+
+        if (r != null || absent.isEmpty()) {
+            return null;
+        }
+
+        BroadcastMessage m = new BroadcastMessage(originalMessage);
+        long now = System.currentTimeMillis();
+        for (Absent a : absent.values()) {
+            // Not yet removed by the absentReaper
+            if (now - a.time > cacheOnFailureWindow) continue;
+
+            try {
+                bc.getBroadcasterCache().addToCache(getID(), a.resource, m);
+            } catch (Exception ex) {
+                logger.trace("Unable to cache message {} for AtmosphereResource {}", originalMessage, a.resource.uuid(), ex);
+            }
+        }
+        return null;
+    }
+
     /**
      * Cache the message because an unexpected exception occurred.
      *
@@ -1183,9 +2261,18 @@ public class DefaultBroadcaster implements Broadcaster {
             return;
         }
 
+        if (token != null && token.coalesced != null) {
+            for (AsyncWriteToken t : token.coalesced) {
+                cacheLostMessage(r, t, force);
+            }
+            return;
+        }
+
         try {
             if (token != null && token.originalMessage != null) {
-                bc.getBroadcasterCache().addToCache(getID(), r, new BroadcastMessage(String.valueOf(token.future.hashCode()), token.originalMessage));
+                // The same ID for every resource losing the message, outside of the BroadcastMessage counter IDs.
+                bc.getBroadcasterCache().addToCache(getID(), r, token.future == null ? new BroadcastMessage(token.originalMessage)
+                        : new BroadcastMessage("lost-" + token.future.hashCode(), token.originalMessage));
                 logger.trace("Lost message cached {}", token.originalMessage);
             }
         } catch (Throwable t2) {
@@ -1202,6 +2289,11 @@ public class DefaultBroadcaster implements Broadcaster {
 
     @Override
     public Future<Object> broadcast(Object msg) {
+        return broadcast(msg, PRIORITY.NORMAL);
+    }
+
+    @Override
+    public Future<Object> broadcast(Object msg, PRIORITY priority) {
 
         if (destroyed.get()) {
             logger.debug(DESTROYED, getID(), "broadcast(T msg)");
@@ -1218,7 +2310,48 @@ public class DefaultBroadcaster implements Broadcaster {
         int callee = resources.size() == 0 ? 1 : resources.size();
 
         BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(newMsg, callee);
-        dispatchMessages(new Entry(newMsg, f, msg));
+        Entry e = new Entry(newMsg, f, msg);
+        e.priority = priority;
+        dispatchMessages(e);
+        return f;
+    }
+
+    @Override
+    public Future<Object> broadcastAll(Object[] msgs) {
+        return broadcastAll(Arrays.asList(msgs));
+    }
+
+    @Override
+    public Future<Object> broadcastAll(List<?> msgs) {
+
+        if (destroyed.get()) {
+            logger.debug(DESTROYED, getID(), "broadcastAll(List<?> msgs)");
+            return futureDone(msgs);
+        }
+
+        start();
+        List<Object> newMsgs = new ArrayList<Object>(msgs.size());
+        List<Object> originalMsgs = new ArrayList<Object>(msgs.size());
+        for (Object msg : msgs) {
+            Object newMsg = filter(msg);
+            if (newMsg == null) {
+                logger.debug("Broadcast Interrupted {}", msg);
+                continue;
+            }
+            newMsgs.add(newMsg);
+            originalMsgs.add(msg);
+        }
+
+        if (newMsgs.isEmpty()) {
+            return futureDone(msgs);
+        }
+
+        int callee = resources.size() == 0 ? 1 : resources.size();
+
+        BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(newMsgs, callee);
+        Entry e = new Entry(newMsgs, f, originalMsgs);
+        e.batch = true;
+        dispatchMessages(e);
         return f;
     }
 
@@ -1228,8 +2361,13 @@ public class DefaultBroadcaster implements Broadcaster {
     }
 
     protected void dispatchMessages(Entry e) {
-        messages.offer(e);
+        if (!outOfOrderBroadcastSupported.get()) {
+            messageLanes.offer(e.priority.ordinal(), e);
+            mailbox.schedule();
+            return;
+        }
 
+        messages.offer(e);
         if (dispatchThread.get() == 0) {
             dispatchThread.incrementAndGet();
             getBroadcasterConfig().getExecutorService().submit(getBroadcastHandler());
@@ -1252,6 +2390,11 @@ public class DefaultBroadcaster implements Broadcaster {
 
     @Override
     public Future<Object> broadcast(Object msg, AtmosphereResource r) {
+        return broadcast(msg, r, PRIORITY.NORMAL);
+    }
+
+    @Override
+    public Future<Object> broadcast(Object msg, AtmosphereResource r, PRIORITY priority) {
 
         if (destroyed.get()) {
             logger.debug(DESTROYED, getID(), "broadcast(T msg, AtmosphereResource r");
@@ -1263,7 +2406,9 @@ public class DefaultBroadcaster implements Broadcaster {
         if (newMsg == null) return futureDone(msg);
 
         BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(newMsg, 1);
-        dispatchMessages(new Entry(newMsg, r, f, msg));
+        Entry e = new Entry(newMsg, r, f, msg);
+        e.priority = priority;
+        dispatchMessages(e);
         return f;
     }
 
@@ -1356,7 +2501,7 @@ public class DefaultBroadcaster implements Broadcaster {
             // Only synchronize if we have a valid BroadcasterCache
             if (!bc.getBroadcasterCache().getClass().equals(BroadcasterCache.DEFAULT.getClass().getName())) {
                 // In case we are adding messages to the cache, we need to make sure the operation is done before.
-                synchronized (resources) {
+                synchronized (r) {
                     cacheAndSuspend(r);
                 }
             } else {
@@ -1411,7 +2556,13 @@ public class DefaultBroadcaster implements Broadcaster {
     }
 
     protected void notifyAndAdd(AtmosphereResource r) {
-        resources.add(r);
+        AtmosphereResource previous = resources.put(r);
+        absent.remove(r.uuid());
+        if (previous != null) {
+            logger.trace("AtmosphereResource {} replaced a previous instance for Broadcaster {}", r.uuid(), getID());
+            notifyOnRemoveAtmosphereResourceListener(previous);
+        }
+        AtmosphereResourceFactory.getDefault().register(r);
         notifyOnAddAtmosphereResourceListener(r);
     }
 
@@ -1467,22 +2618,21 @@ public class DefaultBroadcaster implements Broadcaster {
             return this;
         }
 
-        boolean removed;
-        synchronized (resources) {
-            removed = resources.remove(r);
-            if (removed) {
-                if (r.isSuspended()) {
-                    logger.trace("Excluded from {} : {}", getID(), r.uuid());
-                    bc.getBroadcasterCache().excludeFromCache(getID(), r);
-                }
-                notifyOnRemoveAtmosphereResourceListener(r);
-            }
+        if (!resources.remove(r)) return this;
+
+        if (r.isSuspended()) {
+            logger.trace("Excluded from {} : {}", getID(), r.uuid());
+            bc.getBroadcasterCache().excludeFromCache(getID(), r);
+        } else if (cacheOnFailure) {
+            Absent a = new Absent(r);
+            absent.put(r.uuid(), a);
+            absentExpiry().schedule(absentReaper, a.time + cacheOnFailureWindow);
         }
+        notifyOnRemoveAtmosphereResourceListener(r);
 
-        if (!removed) return this;
+        pendingWrites.remove(r.uuid());
 
         logger.trace("Removing AtmosphereResource {} for Broadcaster {}", r.uuid(), name);
-        writeQueues.remove(r.uuid());
 
         // Here we need to make sure we aren't in the process of broadcasting and unlock the Future.
         if (executeDone) {
@@ -1646,6 +2796,13 @@ public class DefaultBroadcaster implements Broadcaster {
         BroadcasterFuture future;
         Object originalMessage;
         CacheMessage cache;
+        EncodedMessage encoded;
+        List<AsyncWriteToken> coalesced;
+        PendingWrites pending;
+        AtomicBoolean claimed;
+        int size;
+        Object key;
+        PRIORITY priority = PRIORITY.NORMAL;
 
         public AsyncWriteToken(AtmosphereResource resource, Object msg, BroadcasterFuture future, Object originalMessage) {
             this.resource = resource;
@@ -1662,11 +2819,50 @@ public class DefaultBroadcaster implements Broadcaster {
             this.cache = cache;
         }
 
+        public AsyncWriteToken(AtmosphereResource resource, Object msg, BroadcasterFuture future, Object originalMessage, CacheMessage cache, EncodedMessage encoded) {
+            this(resource, msg, future, originalMessage, cache);
+            this.encoded = encoded;
+        }
+
+        /**
+         * Coalesce the {@link AsyncWriteToken}s of the same {@link AtmosphereResource} into a single write operation.
+         */
+        AsyncWriteToken(List<AsyncWriteToken> tokens) {
+            this.coalesced = new ArrayList<AsyncWriteToken>(tokens);
+            this.resource = tokens.get(0).resource;
+
+            List<Object> messages = new ArrayList<Object>(tokens.size());
+            List<Object> originalMessages = new ArrayList<Object>(tokens.size());
+            for (AsyncWriteToken t : tokens) {
+                messages.add(t.msg);
+                originalMessages.add(t.originalMessage);
+            }
+            this.msg = messages;
+            this.originalMessage = originalMessages;
+            this.priority = tokens.get(0).priority;
+        }
+
+        /**
+         * Claim the token for writing.
+         *
+         * @return false if the token has been dropped by a {@link SLOW_CONSUMER_POLICY}
+         */
+        boolean claim() {
+            return pending == null || pending.claim(this);
+        }
+
         public void destroy() {
             this.resource = null;
             this.msg = null;
             this.future = null;
             this.originalMessage = null;
+            this.encoded = null;
+            if (coalesced != null) {
+                for (AsyncWriteToken t : coalesced) {
+                    t.destroy();
+                }
+                coalesced = null;
+            }
         }
 
         @Override
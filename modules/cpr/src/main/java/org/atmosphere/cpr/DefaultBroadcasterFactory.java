@@ -52,13 +52,17 @@
  */
 package org.atmosphere.cpr;
 
+import org.atmosphere.util.PathTrie;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -81,8 +85,16 @@ import static org.atmosphere.cpr.BroadcasterLifeCyclePolicy.ATMOSPHERE_RESOURCE_
 public class DefaultBroadcasterFactory extends BroadcasterFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultBroadcasterFactory.class);
+    private static final int LOCK_STRIPES = 64;
 
     private final ConcurrentHashMap<Object, Broadcaster> store = new ConcurrentHashMap<Object, Broadcaster>();
+    // Broadcaster's ID, as a path -> the id used as key of the store.
+    private final PathTrie<Object> paths = new PathTrie<Object>();
+    // AtmosphereResource's uuid -> the Broadcasters it is associated with.
+    private final ConcurrentHashMap<String, Set<Broadcaster>> resourcesIndex = new ConcurrentHashMap<String, Set<Broadcaster>>();
+    private final BroadcasterListener resourcesIndexer = new ResourcesIndexer();
+    // Serialize the creation of Broadcasters with the same id, without serializing unrelated ids.
+    private final Object[] locks = new Object[LOCK_STRIPES];
 
     private final Class<? extends Broadcaster> clazz;
 
@@ -95,6 +107,9 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
     protected DefaultBroadcasterFactory(Class<? extends Broadcaster> clazz, String broadcasterLifeCyclePolicy, AtmosphereConfig c) {
         this.clazz = clazz;
         this.factory = this;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
         config = c;
         configure(broadcasterLifeCyclePolicy);
     }
@@ -169,6 +184,7 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
             }
 
             b.setBroadcasterLifeCyclePolicy(policy);
+            b.addBroadcasterListener(resourcesIndexer);
             if (DefaultBroadcaster.class.isAssignableFrom(clazz)) {
                 DefaultBroadcaster.class.cast(b).start();
             }
@@ -187,12 +203,75 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
 
     @Override
     public boolean add(Broadcaster b, Object id) {
-        return (store.put(id, b) == null);
+        index(b);
+        boolean added = store.put(id, b) == null;
+        paths.put(id.toString(), id);
+        return added;
+    }
+
+    /**
+     * Track the {@link AtmosphereResource}s associated with a {@link Broadcaster} so
+     * {@link #removeAllAtmosphereResource(AtmosphereResource)} only visits the {@link Broadcaster}s an
+     * {@link AtmosphereResource} is associated with.
+     *
+     * @param b a {@link Broadcaster}
+     */
+    private void index(Broadcaster b) {
+        b.addBroadcasterListener(resourcesIndexer);
+        for (AtmosphereResource r : b.getAtmosphereResources()) {
+            index(b, r);
+        }
+    }
+
+    private void index(Broadcaster b, AtmosphereResource r) {
+        for (; ; ) {
+            Set<Broadcaster> broadcasters = resourcesIndex.get(r.uuid());
+            if (broadcasters == null) {
+                broadcasters = Collections.newSetFromMap(new ConcurrentHashMap<Broadcaster, Boolean>());
+                Set<Broadcaster> previous = resourcesIndex.putIfAbsent(r.uuid(), broadcasters);
+                if (previous != null) {
+                    broadcasters = previous;
+                }
+            }
+            broadcasters.add(b);
+
+            // The Set may have been removed from the index when it was empty.
+            if (resourcesIndex.get(r.uuid()) == broadcasters) {
+                return;
+            }
+        }
+    }
+
+    private void unindex(Broadcaster b, AtmosphereResource r) {
+        Set<Broadcaster> broadcasters = resourcesIndex.get(r.uuid());
+        if (broadcasters != null) {
+            broadcasters.remove(b);
+            if (broadcasters.isEmpty()) {
+                resourcesIndex.remove(r.uuid(), broadcasters);
+            }
+        }
+    }
+
+    /**
+     * Return the {@link Broadcaster}s an {@link AtmosphereResource} is associated with.
+     *
+     * @param r an {@link AtmosphereResource}
+     * @return the {@link Broadcaster}s an {@link AtmosphereResource} is associated with
+     */
+    public Collection<Broadcaster> lookupAll(AtmosphereResource r) {
+        Set<Broadcaster> broadcasters = resourcesIndex.get(r.uuid());
+        if (broadcasters == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableCollection(broadcasters);
     }
 
     @Override
     public boolean remove(Broadcaster b, Object id) {
         boolean removed = store.remove(id, b);
+        if (removed) {
+            paths.remove(id.toString(), id);
+        }
         if (removed && logger.isDebugEnabled()) {
             logger.debug("Removing Broadcaster {} factory size now {} ", id, store.size());
         }
@@ -220,7 +299,23 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
     }
 
     public <T extends Broadcaster> T lookup(Class<T> c, Object id, boolean createIfNull, boolean unique) {
-        synchronized (id) {
+        // Most lookups hit an existing Broadcaster and never lock.
+        Broadcaster existing = store.get(id);
+        if (existing != null && !existing.isDestroyed()) {
+            if (unique) {
+                throw new IllegalStateException("Broadcaster already exists " + id + ". Use BroadcasterFactory.lookup instead");
+            }
+            if (!c.isAssignableFrom(existing.getClass())) {
+                String msg = "Invalid lookup class " + c.getName() + ". Cached class is: " + existing.getClass().getName();
+                logger.debug(msg);
+                throw new IllegalStateException(msg);
+            }
+            return (T) existing;
+        } else if (existing == null && !createIfNull) {
+            return null;
+        }
+
+        synchronized (lock(id)) {
             logger.trace("About to create {}", id);
             if (unique && store.get(id) != null) {
                 throw new IllegalStateException("Broadcaster already exists " + id + ". Use BroadcasterFactory.lookup instead");
@@ -237,13 +332,16 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
             if ((b == null && createIfNull) || (b != null && b.isDestroyed())) {
                 if (b != null) {
                     logger.trace("Removing destroyed Broadcaster {}", b.getID());
-                    store.remove(b.getID(), b);
+                    if (store.remove(b.getID(), b)) {
+                        paths.remove(b.getID(), b.getID());
+                    }
                 }
 
                 Broadcaster nb = store.get(id);
                 if (nb == null) {
                     nb = createBroadcaster(c, id);
                     store.put(id, nb);
+                    paths.put(id.toString(), id);
                 }
 
                 if (nb == null && logger.isTraceEnabled()) {
@@ -256,16 +354,24 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
         }
     }
 
+    private Object lock(Object id) {
+        return locks[(id.hashCode() & 0x7fffffff) % locks.length];
+    }
+
     @Override
     public void removeAllAtmosphereResource(AtmosphereResource r) {
         // Remove inside all Broadcaster as well.
         try {
-            if (store.size() > 0) {
-                for (Broadcaster b : lookupAll()) {
+            Set<Broadcaster> broadcasters = resourcesIndex.get(r.uuid());
+            if (broadcasters != null) {
+                for (Broadcaster b : broadcasters) {
                     try {
                         // Prevent deadlock
                         if (b.getAtmosphereResources().contains(r)) {
                             b.removeAtmosphereResource(r);
+                        } else if (b.isDestroyed()) {
+                            // A destroyed Broadcaster doesn't notify the removal of its AtmosphereResources.
+                            unindex(b, r);
                         }
                     } catch (IllegalStateException ex) {
                         logger.trace(ex.getMessage(), ex);
@@ -279,7 +385,11 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
 
     @Override
     public boolean remove(Object id) {
-        return store.remove(id) != null;
+        if (store.remove(id) != null) {
+            paths.remove(id.toString(), id);
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -287,6 +397,44 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
         return Collections.unmodifiableCollection(store.values());
     }
 
+    /**
+     * Return the {@link Broadcaster}s whose {@link Broadcaster#getID()}, split on '/', starts with the segments,
+     * without visiting the other {@link Broadcaster}s.
+     *
+     * @param segments the leading segments of the {@link Broadcaster#getID()}, see {@link PathTrie#segments(String)}
+     * @param exact    true to only return the {@link Broadcaster} whose {@link Broadcaster#getID()} has exactly those segments
+     * @return the {@link Broadcaster}s
+     */
+    public Collection<Broadcaster> lookupAll(List<String> segments, boolean exact) {
+        List<Object> ids;
+        if (exact) {
+            Object id = paths.get(join(segments));
+            ids = id == null ? Collections.emptyList() : Collections.singletonList(id);
+        } else {
+            ids = paths.values(segments);
+        }
+
+        List<Broadcaster> l = new ArrayList<Broadcaster>(ids.size());
+        for (Object id : ids) {
+            Broadcaster b = store.get(id);
+            if (b != null) {
+                l.add(b);
+            }
+        }
+        return l;
+    }
+
+    private static String join(List<String> segments) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            if (i > 0) {
+                b.append('/');
+            }
+            b.append(segments.get(i));
+        }
+        return b.toString();
+    }
+
     @Override
     public synchronized void destroy() {
 
@@ -315,6 +463,8 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
         }
         broadcasterListeners.clear();
         store.clear();
+        paths.clear();
+        resourcesIndex.clear();
         factory = null;
     }
 
@@ -345,6 +495,20 @@ public class DefaultBroadcasterFactory extends BroadcasterFactory {
         return factory;
     }
 
+    private final class ResourcesIndexer extends BroadcasterListenerAdapter {
+
+        @Override
+        public void onAddAtmosphereResource(Broadcaster b, AtmosphereResource r) {
+            index(b, r);
+        }
+
+        @Override
+        public void onRemoveAtmosphereResource(Broadcaster b, AtmosphereResource r) {
+            // When an instance is replaced by another one with the same uuid, onAddAtmosphereResource is invoked next.
+            unindex(b, r);
+        }
+    }
+
     public static final class BroadcasterCreationException extends RuntimeException {
         public BroadcasterCreationException(Throwable t) {
             super(t);
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The encoded form of a broadcasted message, shared by all {@link AtmosphereResource}s a {@link Broadcaster} delivers
+ * the message to. The message is encoded once per charset, the first time an {@link AtmosphereResource} writes it, and
+ * the resulting bytes are re-used for every other {@link AtmosphereResource}.
+ * <p/>
+ * The byte arrays returned by {@link #bytes(String)} are shared and must never be modified. Only the writes described
+ * by {@link ApplicationConfig#SHARE_ENCODED_MESSAGE} use them.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public final class EncodedMessage {
+
+    private final Object message;
+    private final ConcurrentHashMap<String, byte[]> encoded = new ConcurrentHashMap<String, byte[]>(2);
+
+    public EncodedMessage(Object message) {
+        this.message = message;
+    }
+
+    /**
+     * Return true if this instance holds the encoded form of the message. The check is done using identity, so a message
+     * transformed by a {@link PerRequestBroadcastFilter} or an {@link AtmosphereInterceptor} will never match.
+     *
+     * @param o a message
+     * @return true if this instance holds the encoded form of the message
+     */
+    public boolean isEncodingOf(Object o) {
+        return message == o;
+    }
+
+    /**
+     * Return the encoded message, encoding it if this is the first time the charset is requested.
+     *
+     * @param charset the charset
+     * @return the shared, encoded message
+     * @throws UnsupportedEncodingException
+     */
+    public byte[] bytes(String charset) throws UnsupportedEncodingException {
+        byte[] b = encoded.get(charset);
+        if (b == null) {
+            b = message.toString().getBytes(charset);
+            byte[] previous = encoded.putIfAbsent(charset, b);
+            if (previous != null) {
+                b = previous;
+            }
+        }
+        return b;
+    }
+
+    public Object message() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedMessage{" +
+                "message=" + message +
+                ", charsets=" + encoded.keySet() +
+                '}';
+    }
+}
@@ -32,6 +32,10 @@ public class Entry {
     public final TYPE type;
     // https://github.com/Atmosphere/atmosphere/issues/864
     public CacheMessage cache;
+    public EncodedMessage encoded;
+    public Broadcaster.PRIORITY priority = Broadcaster.PRIORITY.NORMAL;
+    // The message and originalMessage are the List of messages of a Broadcaster#broadcastAll(List)
+    public boolean batch;
 
     public Entry(TYPE type,
                  Object originalMessage,
@@ -63,6 +67,9 @@ public class Entry {
 
     public Entry(AtmosphereResource r, Entry e) {
         this(TYPE.RESOURCE, e.originalMessage, e.message, r, e.future, e.cache, e.writeLocally, null);
+        this.encoded = e.encoded;
+        this.priority = e.priority;
+        this.batch = e.batch;
     }
 
     public Entry(Object message, Set<AtmosphereResource> resources, BroadcasterFuture<?> future, Object originalMessage) {
@@ -154,6 +154,10 @@ public interface FrameworkConfig {
      * long-polling.
      */
     String MESSAGE_WRITTEN = Broadcaster.class.getName() + ".messageWritten";
+    /**
+     * The {@link EncodedMessage} shared by all {@link AtmosphereResource} for the message being written.
+     */
+    String ENCODED_MESSAGE = EncodedMessage.class.getName();
     /**
      * Guice Injector
      */
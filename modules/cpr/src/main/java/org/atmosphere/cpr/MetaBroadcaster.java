@@ -15,6 +15,7 @@
  */
 package org.atmosphere.cpr;
 
+import org.atmosphere.util.PathTrie;
 import org.atmosphere.util.uri.UriTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -66,15 +68,24 @@ public class MetaBroadcaster {
     private final static MetaBroadcaster metaBroadcaster = new MetaBroadcaster();
     private final static ConcurrentLinkedQueue<BroadcasterListener> broadcasterListeners = new ConcurrentLinkedQueue<BroadcasterListener>();
     private final static MetaBroadcasterFuture E = new MetaBroadcasterFuture(Collections.<Broadcaster>emptyList());
+    private final static int MAX_CACHED_TEMPLATES = 256;
+    // Compiling a UriTemplate is expensive, hence the most recently used are kept.
+    private final static Map<String, UriTemplate> templates = Collections.synchronizedMap(
+            new LinkedHashMap<String, UriTemplate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, UriTemplate> eldest) {
+                    return size() > MAX_CACHED_TEMPLATES;
+                }
+            });
 
     protected MetaBroadcasterFuture broadcast(final String path, Object message, int time, TimeUnit unit, boolean delay) {
         if (BroadcasterFactory.getDefault() != null) {
-            Collection<Broadcaster> c = BroadcasterFactory.getDefault().lookupAll();
+            Collection<Broadcaster> c = candidates(BroadcasterFactory.getDefault(), path);
 
             final Map<String, String> m = new HashMap<String, String>();
             List<Broadcaster> l = new ArrayList<Broadcaster>();
             logger.trace("Map {}", path);
-            UriTemplate t = new UriTemplate(path);
+            UriTemplate t = template(path);
             for (Broadcaster b : c) {
                 logger.trace("Trying to map {} to {}", t, b.getID());
                 if (t.match(b.getID(), m)) {
@@ -107,6 +118,57 @@ public class MetaBroadcaster {
         }
     }
 
+    /**
+     * Return the {@link Broadcaster}s that can possibly match the path. When the {@link BroadcasterFactory} is a
+     * {@link DefaultBroadcasterFactory}, only the {@link Broadcaster}s whose ID starts with the literal segments of the
+     * path are returned.
+     *
+     * @param factory the {@link BroadcasterFactory}
+     * @param path    a path, which may contain regular expressions and template variables
+     * @return the {@link Broadcaster}s to match against the path
+     */
+    protected Collection<Broadcaster> candidates(BroadcasterFactory factory, String path) {
+        if (!DefaultBroadcasterFactory.class.isAssignableFrom(factory.getClass())) {
+            return factory.lookupAll();
+        }
+
+        List<String> segments = PathTrie.segments(path);
+        for (int i = 0; i < segments.size(); i++) {
+            if (!isLiteral(segments.get(i))) {
+                return DefaultBroadcasterFactory.class.cast(factory).lookupAll(segments.subList(0, i), false);
+            }
+        }
+        return DefaultBroadcasterFactory.class.cast(factory).lookupAll(segments, true);
+    }
+
+    private static boolean isLiteral(String segment) {
+        for (int i = 0; i < segment.length(); i++) {
+            switch (segment.charAt(i)) {
+                case '{':
+                case '}':
+                case '[':
+                case ']':
+                case '*':
+                case '+':
+                case '\\':
+                case '^':
+                case '$':
+                case '|':
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    protected UriTemplate template(String path) {
+        UriTemplate t = templates.get(path);
+        if (t == null) {
+            t = new UriTemplate(path);
+            templates.put(path, t);
+        }
+        return t;
+    }
+
     protected MetaBroadcasterFuture map(String path, Object message, int time, TimeUnit unit, boolean delay) {
 
         if (path == null || path.isEmpty()) {
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+
+import org.atmosphere.cpr.BroadcastFilter.BroadcastAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A {@link DefaultBroadcaster} that splits its {@link AtmosphereResource}s into shards, by default one per available
+ * processor. Every shard owns its subset of the {@link AtmosphereResource}s, its own queue of messages and its own
+ * threads, so a broadcast is delivered by all the shards in parallel and a large Broadcaster no longer contends on a
+ * single queue.
+ * <p/>
+ * The {@link ShardedBroadcaster} is used as any other {@link Broadcaster}: the {@link BroadcastFilter}s and the
+ * {@link BroadcasterCache} are applied once per message, the {@link Future} returned by a broadcast completes when
+ * all the shards have written the message, and the {@link BroadcasterListener}s are notified as with a
+ * {@link DefaultBroadcaster}. The number of shards is configured using {@link ApplicationConfig#BROADCASTER_SHARDS}.
+ * <p/>
+ * The messages are routed to the shards in order by the {@link BroadcasterConfig#getExecutorService()}, where a
+ * callable message is resolved and the message cached, as with a {@link DefaultBroadcaster}. A batch passed to
+ * {@link #broadcastAll(List)} is delivered message by message, and its {@link Future} completes once all the messages
+ * have been delivered.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class ShardedBroadcaster extends DefaultBroadcaster {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedBroadcaster.class);
+
+    private Shard[] shards = new Shard[0];
+
+    public ShardedBroadcaster() {
+    }
+
+    @Override
+    public Broadcaster initialize(String name, URI uri, AtmosphereConfig config) {
+        super.initialize(name, uri, config);
+
+        int count = Runtime.getRuntime().availableProcessors();
+        String s = config.getInitParameter(ApplicationConfig.BROADCASTER_SHARDS);
+        if (s != null) {
+            count = Integer.valueOf(s);
+        }
+
+        shards = new Shard[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            shards[i].initialize(name, uri, config);
+        }
+        logger.trace("{} uses {} shards", name, shards.length);
+        return this;
+    }
+
+    /**
+     * Return the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int shards() {
+        return shards.length;
+    }
+
+    private int index(AtmosphereResource r) {
+        return (r.uuid().hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private Shard shard(AtmosphereResource r) {
+        return shards[index(r)];
+    }
+
+    @Override
+    protected void spawnReactor() {
+        for (Shard s : shards) {
+            s.start();
+        }
+    }
+
+    @Override
+    protected void notifyAndAdd(AtmosphereResource r) {
+        super.notifyAndAdd(r);
+        shard(r).resources.put(r);
+    }
+
+    @Override
+    protected Broadcaster removeAtmosphereResource(AtmosphereResource r, boolean executeDone) {
+        super.removeAtmosphereResource(r, executeDone);
+        if (!resources.contains(r)) {
+            Shard s = shard(r);
+            s.resources.remove(r);
+            s.pendingWrites.remove(r.uuid());
+        }
+        return this;
+    }
+
+    @Override
+    public Future<Object> broadcastAll(List<?> msgs) {
+        if (destroyed.get()) {
+            logger.debug("This Broadcaster has been destroyed and cannot be used {}", getID());
+            return futureDone(msgs);
+        }
+
+        start();
+        List<Object> newMsgs = new ArrayList<Object>(msgs.size());
+        List<Object> originalMsgs = new ArrayList<Object>(msgs.size());
+        for (Object msg : msgs) {
+            Object newMsg = filter(msg);
+            if (newMsg == null) {
+                logger.debug("Broadcast Interrupted {}", msg);
+                continue;
+            }
+            newMsgs.add(newMsg);
+            originalMsgs.add(msg);
+        }
+
+        if (newMsgs.isEmpty()) {
+            return futureDone(msgs);
+        }
+
+        // One Future for the whole batch, shared by the Entry of every message.
+        int callee = resources.size() == 0 ? 1 : resources.size();
+        BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(newMsgs, newMsgs.size() * callee);
+        for (int i = 0; i < newMsgs.size(); i++) {
+            dispatchMessages(new Entry(newMsgs.get(i), f, originalMsgs.get(i)));
+        }
+        return f;
+    }
+
+    @Override
+    protected void dispatchMessages(Entry e) {
+        // Always routed in order, the shards deliver out of order when configured.
+        messageLanes.offer(e.priority.ordinal(), e);
+        mailbox.schedule();
+    }
+
+    @Override
+    protected void push(Entry e) {
+        if (destroyed.get()) {
+            return;
+        }
+        route(e, true);
+    }
+
+    /**
+     * Route an {@link Entry} to the shards owning its {@link AtmosphereResource}s. Invoked by the
+     * {@link BroadcasterConfig#getExecutorService()}, a callable message is resolved and the message is cached once,
+     * before being handed to the shards.
+     *
+     * @param entry an {@link Entry}
+     * @param rec   true to flush the delayed broadcasts with this {@link Entry}
+     */
+    protected void route(Entry entry, boolean rec) {
+        recentActivity.set(true);
+        if (rec) {
+            flushDelayedBroadcast(entry);
+        }
+
+        Object finalMsg = callable(entry.message);
+        if (finalMsg == null) {
+            logger.error("Callable exception. Please catch all exceptions from your callable. Message {} will be lost.", entry.message);
+            entryDone(entry.future);
+            return;
+        }
+        entry.originalMessage = (entry.originalMessage != entry.message ? callable(entry.originalMessage) : finalMsg);
+        entry.message = finalMsg;
+
+        if (entry.originalMessage == null) {
+            logger.trace("Broadcasted message was null {}", entry);
+            entryDone(entry.future);
+            return;
+        }
+
+        if (entry.type == Entry.TYPE.RESOURCE) {
+            shard(entry.resource).dispatchMessages(entry);
+            return;
+        }
+
+        if (entry.cache == null) {
+            entry.cache = cache(entry.originalMessage, null);
+        }
+
+        boolean dispatched = false;
+        if (entry.type == Entry.TYPE.ALL) {
+            for (Shard s : shards) {
+                if (!s.resources.isEmpty()) {
+                    s.dispatchMessages(copy(entry, Entry.TYPE.ALL, null));
+                    dispatched = true;
+                }
+            }
+        } else {
+            Set<AtmosphereResource>[] subsets = new Set[shards.length];
+            for (AtmosphereResource r : entry.resources) {
+                if (r == null) continue;
+
+                int i = index(r);
+                if (subsets[i] == null) {
+                    subsets[i] = new HashSet<AtmosphereResource>();
+                }
+                subsets[i].add(r);
+            }
+            for (int i = 0; i < shards.length; i++) {
+                if (subsets[i] != null) {
+                    shards[i].dispatchMessages(copy(entry, Entry.TYPE.SET, subsets[i]));
+                    dispatched = true;
+                }
+            }
+        }
+
+        if (!dispatched) {
+            entryDone(entry.future);
+        }
+    }
+
+    private void flushDelayedBroadcast(Entry entry) {
+        if (delayedBroadcast.isEmpty()) return;
+
+        Iterator<Entry> i = delayedBroadcast.iterator();
+        StringBuilder b = new StringBuilder();
+        while (i.hasNext()) {
+            Entry e = i.next();
+            e.future.cancel(true);
+            try {
+                // Append so we do a single flush
+                if (e.message instanceof String && entry.message instanceof String) {
+                    b.append(e.message);
+                } else {
+                    route(e, false);
+                }
+            } finally {
+                i.remove();
+            }
+        }
+
+        if (b.length() > 0) {
+            entry.message = b.append(entry.message).toString();
+        }
+    }
+
+    private Entry copy(Entry e, Entry.TYPE type, Set<AtmosphereResource> subset) {
+        Entry c = new Entry(type, e.originalMessage, e.message, null, e.future, e.cache, e.writeLocally, subset);
+        c.priority = e.priority;
+        return c;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        if (destroyed.get()) {
+            for (Shard s : shards) {
+                s.destroy();
+            }
+        }
+    }
+
+    /**
+     * A shard, delivering the messages to its subset of {@link AtmosphereResource}s. The {@link AtmosphereResource}s
+     * stay associated with the {@link ShardedBroadcaster}.
+     */
+    private final class Shard extends DefaultBroadcaster {
+
+        @Override
+        protected BroadcasterConfig createBroadcasterConfig(AtmosphereConfig config) {
+            return new ShardConfig(config, ShardedBroadcaster.this.getID());
+        }
+
+        @Override
+        public String getID() {
+            return ShardedBroadcaster.this.getID();
+        }
+
+        @Override
+        protected void start() {
+            if (!started.getAndSet(true)) {
+                spawnReactor();
+            }
+        }
+
+        @Override
+        protected void notifyBroadcastListener() {
+            ShardedBroadcaster.this.notifyBroadcastListener();
+        }
+
+        @Override
+        protected Broadcaster removeAtmosphereResource(AtmosphereResource r, boolean executeDone) {
+            return ShardedBroadcaster.this.removeAtmosphereResource(r, executeDone);
+        }
+    }
+
+    /**
+     * The {@link BroadcasterConfig} of a shard, delegating to the {@link BroadcasterConfig} of the
+     * {@link ShardedBroadcaster}. Destroying it is a no-op.
+     */
+    private final class ShardConfig extends BroadcasterConfig {
+
+        ShardConfig(AtmosphereConfig config, String name) {
+            super(Collections.<String>emptyList(), config, false, name);
+        }
+
+        @Override
+        public ExecutorService getExecutorService() {
+            return bc.getExecutorService();
+        }
+
+        @Override
+        public ExecutorService getAsyncWriteService() {
+            return bc.getAsyncWriteService();
+        }
+
+        @Override
+        public ScheduledExecutorService getScheduledExecutorService() {
+            return bc.getScheduledExecutorService();
+        }
+
+        @Override
+        public BroadcasterCache getBroadcasterCache() {
+            return bc.getBroadcasterCache();
+        }
+
+        @Override
+        public Collection<BroadcastFilter> filters() {
+            return bc.filters();
+        }
+
+        @Override
+        public boolean hasFilters() {
+            return bc.hasFilters();
+        }
+
+        @Override
+        public boolean hasPerRequestFilters() {
+            return bc.hasPerRequestFilters();
+        }
+
+        @Override
+        protected BroadcastAction filter(Object object) {
+            return bc.filter(object);
+        }
+
+        @Override
+        protected BroadcastAction filter(AtmosphereResource r, Object message, Object originalMessage) {
+            return bc.filter(r, message, originalMessage);
+        }
+
+        @Override
+        public List<Object> applyFilters(AtmosphereResource r, List<Object> cacheMessages) {
+            return bc.applyFilters(r, cacheMessages);
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public void forceDestroy() {
+        }
+    }
+}
@@ -59,10 +59,13 @@ import org.atmosphere.cpr.AtmosphereResourceEvent;
 import org.atmosphere.cpr.AtmosphereResourceImpl;
 import org.atmosphere.cpr.AtmosphereResponse;
 import org.atmosphere.cpr.Broadcaster;
+import org.atmosphere.cpr.EncodedMessage;
+import org.atmosphere.cpr.FrameworkConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -150,7 +153,7 @@ public abstract class AbstractReflectorAtmosphereHandler implements AtmosphereHa
                             if (isUsingStream) {
                                 r.getOutputStream().write((byte[]) s);
                             } else {
-                                r.getWriter().write(s.toString());
+                                r.getWriter().write(new String((byte[]) s, r.getCharacterEncoding()));
                             }
                         } else {
                             if (isUsingStream) {
@@ -173,7 +176,7 @@ public abstract class AbstractReflectorAtmosphereHandler implements AtmosphereHa
                 }
             } else {
                 if (isUsingStream) {
-                    r.getOutputStream().write(message.toString().getBytes(r.getCharacterEncoding()));
+                    r.getOutputStream().write(encode(resource, message, r.getCharacterEncoding()));
                     r.getOutputStream().flush();
                 } else {
                     r.getWriter().write(message.toString());
@@ -184,6 +187,19 @@ public abstract class AbstractReflectorAtmosphereHandler implements AtmosphereHa
         postStateChange(event);
     }
 
+    /**
+     * Encode the message, re-using the bytes shared by the {@link Broadcaster} when
+     * {@link ApplicationConfig#SHARE_ENCODED_MESSAGE} is enabled and the message hasn't been transformed.
+     */
+    private byte[] encode(AtmosphereResource resource, Object message, String charset) throws UnsupportedEncodingException {
+        Object o = resource.getRequest().getAttribute(FrameworkConfig.ENCODED_MESSAGE);
+        if (o != null && EncodedMessage.class.isAssignableFrom(o.getClass())
+                && EncodedMessage.class.cast(o).isEncodingOf(message)) {
+            return EncodedMessage.class.cast(o).bytes(charset);
+        }
+        return message.toString().getBytes(charset);
+    }
+
     /**
      * Inspect the event and decide if the underlying connection must be resumed.
      *
@@ -29,6 +29,7 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletRequest;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
 
@@ -170,4 +171,43 @@ public abstract class AbstractBroadcasterProxy extends DefaultBroadcaster {
         }
         return f;
     }
+
+    /**
+     * The messages are sent one by one to the external source, hence they are received as individual messages.
+     */
+    @Override
+    public Future<Object> broadcastAll(List<?> msgs) {
+        if (destroyed.get()) {
+            logger.warn("This Broadcaster has been destroyed and cannot be used {}", getID());
+            return null;
+        }
+
+        start();
+
+        BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(msgs);
+        try {
+            for (Object msg : msgs) {
+                outgoingBroadcast(msg);
+            }
+        } finally {
+            futureDone(f);
+        }
+        return f;
+    }
+
+    /**
+     * The priority only applies to local delivery, hence it is ignored when broadcasting to the external source.
+     */
+    @Override
+    public Future<Object> broadcast(Object msg, PRIORITY priority) {
+        return broadcast(msg);
+    }
+
+    /**
+     * The priority only applies to local delivery, hence it is ignored when broadcasting to the external source.
+     */
+    @Override
+    public Future<Object> broadcast(Object msg, AtmosphereResource r, PRIORITY priority) {
+        return broadcast(msg, r);
+    }
 }
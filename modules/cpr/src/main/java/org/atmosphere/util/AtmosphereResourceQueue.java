@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.util;
+
+import org.atmosphere.cpr.AtmosphereResource;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent queue of {@link AtmosphereResource} indexed by {@link AtmosphereResource#uuid()}. Adding, removing and
+ * checking if an {@link AtmosphereResource} is queued are constant time operations that never lock the whole queue.
+ * Iterating follows the insertion order and is weakly consistent, like a
+ * {@link java.util.concurrent.ConcurrentLinkedQueue}, and never throws {@link java.util.ConcurrentModificationException}.
+ * <p/>
+ * An {@link AtmosphereResource} is only queued once per uuid: adding an {@link AtmosphereResource} replaces the one
+ * already queued with the same uuid, and moves it to the tail of the queue. Removing an {@link AtmosphereResource}
+ * never removes another instance sharing its uuid. {@link #poll()} and {@link #peek()} return the oldest
+ * {@link AtmosphereResource}.
+ * <p/>
+ * A removed {@link AtmosphereResource} is only marked in the insertion order, and skipped. The marked entries are
+ * purged once they outnumber the queued {@link AtmosphereResource}s, so every operation is amortized constant time.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class AtmosphereResourceQueue extends AbstractQueue<AtmosphereResource> {
+
+    private final ConcurrentHashMap<String, Node> resources = new ConcurrentHashMap<String, Node>();
+    // The insertion order, including the removed Nodes not yet purged.
+    private final ConcurrentLinkedQueue<Node> order = new ConcurrentLinkedQueue<Node>();
+    private final AtomicInteger removed = new AtomicInteger();
+    private final AtomicBoolean purging = new AtomicBoolean();
+
+    @Override
+    public boolean offer(AtmosphereResource r) {
+        put(r);
+        return true;
+    }
+
+    /**
+     * Queue an {@link AtmosphereResource}, replacing the one queued with the same uuid.
+     *
+     * @param r an {@link AtmosphereResource}
+     * @return the replaced {@link AtmosphereResource}, or null
+     */
+    public AtmosphereResource put(AtmosphereResource r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        Node n = new Node(r);
+        Node previous = resources.put(r.uuid(), n);
+        order.offer(n);
+        if (previous != null && previous.removed.compareAndSet(false, true)) {
+            removed(previous);
+        }
+        return previous == null || previous.resource == r ? null : previous.resource;
+    }
+
+    @Override
+    public AtmosphereResource poll() {
+        Node n;
+        while ((n = order.poll()) != null) {
+            if (n.removed.compareAndSet(false, true)) {
+                resources.remove(n.resource.uuid(), n);
+                return n.resource;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public AtmosphereResource peek() {
+        Node n;
+        while ((n = order.peek()) != null) {
+            if (!n.removed.get()) {
+                return n.resource;
+            }
+            // Removed, hence at the head: found without scanning.
+            order.remove(n);
+        }
+        return null;
+    }
+
+    /**
+     * Return the {@link AtmosphereResource} associated with the uuid.
+     *
+     * @param uuid {@link AtmosphereResource#uuid()}
+     * @return the {@link AtmosphereResource}, or null if not queued
+     */
+    public AtmosphereResource get(String uuid) {
+        Node n = resources.get(uuid);
+        return n == null || n.removed.get() ? null : n.resource;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null || !AtmosphereResource.class.isAssignableFrom(o.getClass())) {
+            return false;
+        }
+        Node n = resources.get(AtmosphereResource.class.cast(o).uuid());
+        return n != null && n.resource == o && !n.removed.get();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null || !AtmosphereResource.class.isAssignableFrom(o.getClass())) {
+            return false;
+        }
+        String uuid = AtmosphereResource.class.cast(o).uuid();
+        Node n = resources.get(uuid);
+        if (n == null || n.resource != o || !n.removed.compareAndSet(false, true)) {
+            return false;
+        }
+        resources.remove(uuid, n);
+        removed(n);
+        return true;
+    }
+
+    // A Node has been removed but is still in the insertion order.
+    private void removed(Node n) {
+        if (removed.incrementAndGet() <= resources.size() + 64 || !purging.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            removed.set(0);
+            Iterator<Node> i = order.iterator();
+            while (i.hasNext()) {
+                if (i.next().removed.get()) {
+                    i.remove();
+                }
+            }
+        } finally {
+            purging.set(false);
+        }
+    }
+
+    /**
+     * Remove the queued {@link AtmosphereResource}s. Only the entries taken from the insertion order are removed, so an
+     * {@link AtmosphereResource} queued meanwhile is either removed or still fully queued.
+     */
+    @Override
+    public void clear() {
+        Node n;
+        while ((n = order.poll()) != null) {
+            if (n.removed.compareAndSet(false, true)) {
+                resources.remove(n.resource.uuid(), n);
+            }
+        }
+        removed.set(0);
+    }
+
+    @Override
+    public int size() {
+        return resources.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return resources.isEmpty();
+    }
+
+    /**
+     * Return a copy of the queued {@link AtmosphereResource}, in insertion order.
+     *
+     * @return a copy of the queued {@link AtmosphereResource}
+     */
+    public List<AtmosphereResource> snapshot() {
+        List<AtmosphereResource> l = new ArrayList<AtmosphereResource>(resources.size());
+        for (Node n : order) {
+            if (!n.removed.get()) {
+                l.add(n.resource);
+            }
+        }
+        return l;
+    }
+
+    @Override
+    public Iterator<AtmosphereResource> iterator() {
+        final Iterator<Node> i = order.iterator();
+        return new Iterator<AtmosphereResource>() {
+            private Node next;
+            private Node current;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && i.hasNext()) {
+                    Node n = i.next();
+                    if (!n.removed.get()) {
+                        next = n;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public AtmosphereResource next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                current = next;
+                next = null;
+                return current.resource;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                AtmosphereResourceQueue.this.remove(current.resource);
+                current = null;
+            }
+        };
+    }
+
+    private final static class Node {
+        final AtmosphereResource resource;
+        final AtomicBoolean removed = new AtomicBoolean();
+
+        private Node(AtmosphereResource resource) {
+            this.resource = resource;
+        }
+    }
+}
@@ -88,6 +88,19 @@ public class ExcludeSessionBroadcaster extends DefaultBroadcaster {
         return f;
     }
 
+    /**
+     * the AtmosphereResource r will be exclude for this broadcast
+     *
+     * @param msg
+     * @param r
+     * @param priority
+     * @return
+     */
+    @Override
+    public Future<Object> broadcast(Object msg, AtmosphereResource r, PRIORITY priority) {
+        return broadcast(msg, r);
+    }
+
 
     /**
      * the AtmosphereResources subset will be exclude for this broadcast
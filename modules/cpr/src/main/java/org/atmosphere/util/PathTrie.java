@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A trie of values keyed by path, one node per '/' separated segment. It can return the value of a path, or all the
+ * values below a list of leading segments, without visiting the rest of the trie.
+ * <p/>
+ * Lookups never lock. Updates are serialized.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class PathTrie<V> {
+
+    private final Node<V> root = new Node<V>(null, null);
+    private int size;
+
+    /**
+     * Split a path into its segments. "/a/b" is split into "", "a" and "b".
+     *
+     * @param path a path
+     * @return the segments
+     */
+    public static List<String> segments(String path) {
+        return Arrays.asList(path.split("/", -1));
+    }
+
+    /**
+     * Associate a value with a path.
+     *
+     * @param path  a path
+     * @param value a value
+     * @return the value previously associated with the path, or null
+     */
+    public synchronized V put(String path, V value) {
+        Node<V> n = root;
+        for (String s : segments(path)) {
+            Node<V> c = n.children.get(s);
+            if (c == null) {
+                c = new Node<V>(n, s);
+                n.children.put(s, c);
+            }
+            n = c;
+        }
+        V previous = n.value;
+        n.value = value;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * Remove the value associated with a path, if the path is still associated with that value.
+     *
+     * @param path  a path
+     * @param value a value
+     * @return true if removed
+     */
+    public synchronized boolean remove(String path, V value) {
+        Node<V> n = node(segments(path));
+        if (n == null || n.value == null || !n.value.equals(value)) {
+            return false;
+        }
+        n.value = null;
+        size--;
+
+        // Prune the empty nodes.
+        while (n.parent != null && n.value == null && n.children.isEmpty()) {
+            n.parent.children.remove(n.segment);
+            n = n.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Return the value associated with a path.
+     *
+     * @param path a path
+     * @return the value, or null
+     */
+    public V get(String path) {
+        Node<V> n = node(segments(path));
+        return n == null ? null : n.value;
+    }
+
+    /**
+     * Return the values whose paths start with the leading segments.
+     *
+     * @param segments the leading segments, see {@link #segments(String)}
+     * @return the values
+     */
+    public List<V> values(List<String> segments) {
+        List<V> l = new ArrayList<V>();
+        Node<V> n = node(segments);
+        if (n != null) {
+            collect(n, l);
+        }
+        return l;
+    }
+
+    private void collect(Node<V> n, List<V> l) {
+        V v = n.value;
+        if (v != null) {
+            l.add(v);
+        }
+        for (Node<V> c : n.children.values()) {
+            collect(c, l);
+        }
+    }
+
+    private Node<V> node(List<String> segments) {
+        Node<V> n = root;
+        for (String s : segments) {
+            n = n.children.get(s);
+            if (n == null) {
+                return null;
+            }
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        root.children.clear();
+        root.value = null;
+        size = 0;
+    }
+
+    private final static class Node<V> {
+        final Node<V> parent;
+        final String segment;
+        final ConcurrentHashMap<String, Node<V>> children = new ConcurrentHashMap<String, Node<V>>();
+        volatile V value;
+
+        Node(Node<V> parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+}
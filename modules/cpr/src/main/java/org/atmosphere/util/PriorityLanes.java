@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.util;
+
+import java.util.Queue;
+
+/**
+ * A set of queues, or lanes, ordered by priority. {@link #poll()} always drains the highest priority lane first, but
+ * after serving a lane maxBurst times in a row while a lower priority lane is waiting, it serves the lower priority
+ * lane once so it never starves.
+ * <p/>
+ * Elements can be offered concurrently, but {@link #poll()} must only be invoked by one thread at a time.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class PriorityLanes<E> {
+
+    private final Queue<E>[] lanes;
+    private final int[] served;
+    private final int maxBurst;
+
+    /**
+     * Create the lanes.
+     *
+     * @param maxBurst the number of elements served in a row by a lane while a lower priority lane is waiting
+     * @param lanes    the lanes, from the highest to the lowest priority
+     */
+    public PriorityLanes(int maxBurst, Queue<E>... lanes) {
+        this.lanes = lanes;
+        this.served = new int[lanes.length];
+        this.maxBurst = maxBurst;
+    }
+
+    /**
+     * Add an element to a lane.
+     *
+     * @param lane the index of the lane, 0 being the highest priority
+     * @param e    an element
+     * @return true if added
+     */
+    public boolean offer(int lane, E e) {
+        return lanes[lane].offer(e);
+    }
+
+    /**
+     * Remove the next element to serve.
+     *
+     * @return the next element, or null if all lanes are empty
+     */
+    public E poll() {
+        for (int i = 0; i < lanes.length; i++) {
+            if (served[i] >= maxBurst && hasLowerPriority(i)) {
+                served[i] = 0;
+                continue;
+            }
+
+            E e = lanes[i].poll();
+            if (e != null) {
+                served[i]++;
+                return e;
+            }
+            served[i] = 0;
+        }
+        return null;
+    }
+
+    private boolean hasLowerPriority(int lane) {
+        for (int i = lane + 1; i < lanes.length; i++) {
+            if (!lanes[i].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        for (Queue<E> q : lanes) {
+            if (!q.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Queue<E> q : lanes) {
+            size += q.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Queue<E> q : lanes) {
+            q.clear();
+        }
+    }
+}
@@ -64,6 +64,8 @@ import org.atmosphere.cpr.Entry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
 
@@ -142,6 +144,50 @@ public class SimpleBroadcaster extends DefaultBroadcaster {
         return f;
     }
 
+    /**
+     * The messages are written synchronously, as a single {@link List}, to every {@link AtmosphereResource}.
+     */
+    @Override
+    public Future<Object> broadcastAll(List<?> msgs) {
+
+        if (destroyed.get()) {
+            logger.warn("This Broadcaster has been destroyed and cannot be used");
+            return futureDone(msgs);
+        }
+
+        start();
+
+        List<Object> newMsgs = new ArrayList<Object>(msgs.size());
+        List<Object> originalMsgs = new ArrayList<Object>(msgs.size());
+        for (Object msg : msgs) {
+            Object newMsg = filter(msg);
+            if (newMsg != null) {
+                newMsgs.add(newMsg);
+                originalMsgs.add(msg);
+            }
+        }
+        if (newMsgs.isEmpty()) return futureDone(msgs);
+
+        BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(newMsgs);
+        Entry e = new Entry(newMsgs, f, originalMsgs);
+        e.batch = true;
+        push(e);
+        return f;
+    }
+
+    @Override
+    public Future<Object> broadcast(Object msg, PRIORITY priority) {
+        return broadcast(msg);
+    }
+
+    /**
+     * Messages are written synchronously, hence the priority is ignored.
+     */
+    @Override
+    public Future<Object> broadcast(Object msg, AtmosphereResource r, PRIORITY priority) {
+        return broadcast(msg, r);
+    }
+
     @Override
     public Future<Object> broadcast(Object msg, Set<AtmosphereResource> subset) {
 
@@ -169,9 +215,9 @@ public class SimpleBroadcaster extends DefaultBroadcaster {
     }
 
     @Override
-    protected void queueWriteIO(AtmosphereResource r, Entry entry) throws InterruptedException {
+    protected void queueWriteIO(AtmosphereResource r, AsyncWriteToken w) throws InterruptedException {
         synchronized (r) {
-            executeAsyncWrite(new AsyncWriteToken(r, entry.message, entry.future, entry.originalMessage, entry.cache));
+            executeAsyncWrite(w);
         }
     }
 }
\ No newline at end of file
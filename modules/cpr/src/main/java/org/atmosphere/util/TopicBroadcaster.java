@@ -0,0 +1,388 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.util;
+
+import org.atmosphere.cache.CacheExpiry;
+import org.atmosphere.cpr.ApplicationConfig;
+import org.atmosphere.cpr.AtmosphereConfig;
+import org.atmosphere.cpr.AtmosphereResource;
+import org.atmosphere.cpr.Broadcaster;
+import org.atmosphere.cpr.BroadcasterFuture;
+import org.atmosphere.cpr.DefaultBroadcaster;
+import org.atmosphere.cpr.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DefaultBroadcaster} that routes messages over a tree of hierarchical topics like /org/42/room/7. An
+ * {@link AtmosphereResource} subscribes to one or several topic patterns, and a message published to a topic is only
+ * delivered to the {@link AtmosphereResource}s whose patterns match that topic:
+ * <blockquote><pre>
+ *        broadcaster.subscribe("/org/42/room/7", r1);
+ *        // All the rooms of /org/42
+ *        broadcaster.subscribe("/org/42/room/*", r2);
+ *        // Everything below /org/42
+ *        broadcaster.subscribe("/org/42/**", r3);
+ *
+ *        // Delivered once to r1, r2 and r3
+ *        broadcaster.publish("/org/42/room/7", message);
+ * </pre></blockquote>
+ * A '*' segment matches exactly one segment, and a trailing '**' segment matches one or more segments. The patterns
+ * are stored in a trie, one node per segment, so resolving a topic only visits the nodes that can match it. An
+ * {@link AtmosphereResource} matching several patterns receives the message once.
+ * <p/>
+ * Subscriptions are kept by {@link AtmosphereResource#uuid()}, so they survive the reconnections of a client, as with
+ * long-polling. When its {@link AtmosphereResource} is removed, a subscriber keeps its subscriptions, and the messages
+ * published meanwhile are cached for it only, during {@link ApplicationConfig#TOPIC_BROADCASTER_SUBSCRIPTION_TIMEOUT}.
+ * <p/>
+ * {@link #broadcast(Object)} still delivers to all the {@link AtmosphereResource}s.
+ *
+ * @author Jeanfrancois Arcand
+ */
+public class TopicBroadcaster extends DefaultBroadcaster implements CacheExpiry.Expirable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TopicBroadcaster.class);
+
+    public static final String ANY_SEGMENT = "*";
+    public static final String ANY_SEGMENTS = "**";
+
+    private final Node root = new Node(null, null);
+    // The subscriptions by AtmosphereResource's uuid. Modified under the root's lock.
+    private final ConcurrentHashMap<String, Subscriber> subscriptions = new ConcurrentHashMap<String, Subscriber>();
+    private long subscriptionTimeout = TimeUnit.SECONDS.toMillis(60);
+    private CacheExpiry expiry;
+
+    public TopicBroadcaster() {
+    }
+
+    @Override
+    public Broadcaster initialize(String name, URI uri, AtmosphereConfig config) {
+        super.initialize(name, uri, config);
+        String s = config.getInitParameter(ApplicationConfig.TOPIC_BROADCASTER_SUBSCRIPTION_TIMEOUT);
+        if (s != null) {
+            subscriptionTimeout = Long.valueOf(s);
+        }
+        return this;
+    }
+
+    /**
+     * Subscribe an {@link AtmosphereResource} to a topic pattern. The {@link AtmosphereResource} is added to this
+     * {@link Broadcaster} if not already.
+     *
+     * @param pattern a topic, which may contain '*' segments and end with a '**' segment
+     * @param r       an {@link AtmosphereResource}
+     * @return this
+     * @throws IllegalArgumentException if a '**' segment isn't the last one
+     */
+    public TopicBroadcaster subscribe(String pattern, AtmosphereResource r) {
+        List<String> segments = PathTrie.segments(pattern);
+        int i = segments.indexOf(ANY_SEGMENTS);
+        if (i >= 0 && i != segments.size() - 1) {
+            throw new IllegalArgumentException("'" + ANY_SEGMENTS + "' must be the last segment of " + pattern);
+        }
+
+        if (!resources.contains(r)) {
+            addAtmosphereResource(r);
+            if (!resources.contains(r)) {
+                logger.debug("Unable to subscribe AtmosphereResource {} to {}", r.uuid(), pattern);
+                return this;
+            }
+        }
+
+        synchronized (root) {
+            Node n = root;
+            for (String s : segments) {
+                Node c = n.children.get(s);
+                if (c == null) {
+                    c = new Node(n, s);
+                    n.children.put(s, c);
+                }
+                n = c;
+            }
+            n.subscribers.add(r.uuid());
+
+            Subscriber subscriber = subscriptions.get(r.uuid());
+            if (subscriber == null) {
+                subscriber = new Subscriber(r);
+                subscriptions.put(r.uuid(), subscriber);
+            }
+            subscriber.patterns.add(pattern);
+        }
+        logger.trace("AtmosphereResource {} subscribed to {}", r.uuid(), pattern);
+        return this;
+    }
+
+    /**
+     * Unsubscribe an {@link AtmosphereResource} from a topic pattern. The {@link AtmosphereResource} stays associated
+     * with this {@link Broadcaster}.
+     *
+     * @param pattern a topic pattern, as passed to {@link #subscribe(String, AtmosphereResource)}
+     * @param r       an {@link AtmosphereResource}
+     * @return this
+     */
+    public TopicBroadcaster unsubscribe(String pattern, AtmosphereResource r) {
+        unsubscribe(pattern, r.uuid());
+        return this;
+    }
+
+    private void unsubscribe(String pattern, String uuid) {
+        synchronized (root) {
+            Subscriber subscriber = subscriptions.get(uuid);
+            if (subscriber != null) {
+                subscriber.patterns.remove(pattern);
+                if (subscriber.patterns.isEmpty()) {
+                    subscriptions.remove(uuid);
+                }
+            }
+
+            Node n = root;
+            for (String s : PathTrie.segments(pattern)) {
+                n = n.children.get(s);
+                if (n == null) {
+                    return;
+                }
+            }
+            n.subscribers.remove(uuid);
+
+            // Prune the empty nodes.
+            while (n.parent != null && n.subscribers.isEmpty() && n.children.isEmpty()) {
+                n.parent.children.remove(n.segment);
+                n = n.parent;
+            }
+        }
+    }
+
+    /**
+     * Return the topic patterns an {@link AtmosphereResource} is subscribed to.
+     *
+     * @param r an {@link AtmosphereResource}
+     * @return the topic patterns
+     */
+    public Set<String> subscriptions(AtmosphereResource r) {
+        Subscriber subscriber = subscriptions.get(r.uuid());
+        return subscriber == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(subscriber.patterns);
+    }
+
+    /**
+     * Return the {@link AtmosphereResource}s of this {@link Broadcaster} subscribed to a pattern matching the topic.
+     *
+     * @param topic a topic
+     * @return the {@link AtmosphereResource}s, each one only once
+     */
+    public Set<AtmosphereResource> subscribers(String topic) {
+        Set<AtmosphereResource> s = new LinkedHashSet<AtmosphereResource>();
+        for (String uuid : match(topic)) {
+            AtmosphereResource r = resources.get(uuid);
+            if (r != null) {
+                s.add(r);
+            }
+        }
+        return s;
+    }
+
+    // The uuids subscribed to a pattern matching the topic.
+    private Set<String> match(String topic) {
+        Set<String> s = new LinkedHashSet<String>();
+        collect(root, PathTrie.segments(topic), 0, s);
+        return s;
+    }
+
+    private void collect(Node n, List<String> segments, int i, Set<String> s) {
+        if (i == segments.size()) {
+            s.addAll(n.subscribers);
+            return;
+        }
+
+        Node c = n.children.get(segments.get(i));
+        if (c != null) {
+            collect(c, segments, i + 1, s);
+        }
+
+        c = n.children.get(ANY_SEGMENT);
+        if (c != null) {
+            collect(c, segments, i + 1, s);
+        }
+
+        c = n.children.get(ANY_SEGMENTS);
+        if (c != null) {
+            s.addAll(c.subscribers);
+        }
+    }
+
+    /**
+     * Broadcast a message to the {@link AtmosphereResource}s subscribed to a pattern matching the topic. The message
+     * is delivered, and cached, for each subscriber only. The message is only cached for the subscribers whose
+     * {@link AtmosphereResource} has been removed but haven't expired yet.
+     *
+     * @param topic   a topic
+     * @param message a message
+     * @return a {@link Future} that can be used to synchronize using the {@link Future#get()}
+     */
+    public Future<Object> publish(String topic, Object message) {
+        if (destroyed.get()) {
+            logger.debug("This Broadcaster has been destroyed and cannot be used {}", getID());
+            return futureDone(message);
+        }
+
+        start();
+        Object newMsg = filter(message);
+        if (newMsg == null) return futureDone(message);
+
+        List<AtmosphereResource> targets = new ArrayList<AtmosphereResource>();
+        for (String uuid : match(topic)) {
+            AtmosphereResource r = resources.get(uuid);
+            if (r != null) {
+                targets.add(r);
+                continue;
+            }
+
+            // Not connected, the message waits in the cache until the subscriber reconnects or expires.
+            Subscriber subscriber = subscriptions.get(uuid);
+            if (subscriber != null && subscriber.removed != 0) {
+                cache(message, subscriber.resource);
+            }
+        }
+
+        if (targets.isEmpty()) {
+            logger.trace("No AtmosphereResource connected for {}", topic);
+            return futureDone(message);
+        }
+
+        // One Entry per subscriber, so the message is only cached for the subscribers.
+        BroadcasterFuture<Object> f = new BroadcasterFuture<Object>(newMsg, targets.size());
+        for (AtmosphereResource r : targets) {
+            dispatchMessages(new Entry(newMsg, r, f, message));
+        }
+        return f;
+    }
+
+    @Override
+    protected void notifyAndAdd(AtmosphereResource r) {
+        super.notifyAndAdd(r);
+
+        Subscriber subscriber = subscriptions.get(r.uuid());
+        if (subscriber != null) {
+            subscriber.resource = r;
+            subscriber.removed = 0;
+        }
+    }
+
+    @Override
+    protected Broadcaster removeAtmosphereResource(AtmosphereResource r, boolean executeDone) {
+        super.removeAtmosphereResource(r, executeDone);
+
+        Subscriber subscriber = subscriptions.get(r.uuid());
+        if (subscriber != null && resources.get(r.uuid()) == null) {
+            long now = System.currentTimeMillis();
+            subscriber.resource = r;
+            subscriber.removed = now;
+            expiry().schedule(this, now + subscriptionTimeout);
+        }
+        return this;
+    }
+
+    @Override
+    public long expire(long now) {
+        long next = -1;
+        synchronized (root) {
+            Iterator<Subscriber> i = subscriptions.values().iterator();
+            while (i.hasNext()) {
+                Subscriber subscriber = i.next();
+                long removed = subscriber.removed;
+                if (removed == 0) {
+                    continue;
+                }
+
+                if (now - removed >= subscriptionTimeout) {
+                    logger.trace("AtmosphereResource {} expired, dropping its subscriptions", subscriber.resource.uuid());
+                    for (String pattern : new HashSet<String>(subscriber.patterns)) {
+                        unsubscribe(pattern, subscriber.resource.uuid());
+                    }
+                } else if (next < 0 || removed + subscriptionTimeout < next) {
+                    next = removed + subscriptionTimeout;
+                }
+            }
+        }
+        return next;
+    }
+
+    private synchronized CacheExpiry expiry() {
+        if (expiry == null) {
+            expiry = config == null ? CacheExpiry.getDefault() : CacheExpiry.get(config);
+        }
+        return expiry;
+    }
+
+    /**
+     * Set the time, in milliseconds, the subscriptions of a removed {@link AtmosphereResource} are kept.
+     *
+     * @param subscriptionTimeout the time in milliseconds
+     * @return this
+     */
+    public TopicBroadcaster setSubscriptionTimeout(long subscriptionTimeout) {
+        this.subscriptionTimeout = subscriptionTimeout;
+        return this;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        if (expiry != null) {
+            expiry.cancel(this);
+        }
+        synchronized (root) {
+            root.children.clear();
+            root.subscribers.clear();
+            subscriptions.clear();
+        }
+    }
+
+    private final static class Subscriber {
+        final Set<String> patterns = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // The last AtmosphereResource of the subscriber.
+        volatile AtmosphereResource resource;
+        // The time the AtmosphereResource has been removed, or 0.
+        volatile long removed;
+
+        Subscriber(AtmosphereResource resource) {
+            this.resource = resource;
+        }
+    }
+
+    private final static class Node {
+        final Node parent;
+        final String segment;
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+        final Set<String> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Node(Node parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+    }
+}
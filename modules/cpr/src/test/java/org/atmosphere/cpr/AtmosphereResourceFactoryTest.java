@@ -20,12 +20,14 @@ import org.testng.annotations.Test;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
+import java.io.IOException;
 import java.util.Enumeration;
 
 import static org.mockito.Mockito.mock;
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertNotNull;
 import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
 
 public class AtmosphereResourceFactoryTest {
 
@@ -90,6 +92,21 @@ public class AtmosphereResourceFactoryTest {
         assertNull(AtmosphereResourceFactory.getDefault().find(r.uuid()));
     }
 
+    @Test
+    public void registryTest() throws IOException {
+        Broadcaster b1 = BroadcasterFactory.getDefault().get("b1");
+        AtmosphereResource r = AtmosphereResourceFactory.getDefault().create(framework.getAtmosphereConfig(), b1, AtmosphereResponse.newInstance().request(AtmosphereRequest.newInstance()),
+                mock(AsyncSupport.class), mock(AtmosphereHandler.class));
+        b1.addAtmosphereResource(r);
+
+        assertEquals(r, AtmosphereResourceFactory.getDefault().find(r.uuid().toUpperCase()));
+        assertTrue(AtmosphereResourceFactory.getDefault().findAll().contains(r));
+        assertTrue(AtmosphereResourceFactory.getDefault().estimatedFootprint() > 0);
+
+        AtmosphereResourceImpl.class.cast(r).cancel();
+        assertNull(AtmosphereResourceFactory.getDefault().find(r.uuid()));
+    }
+
     @Test
     public void deleteTest() {
         for (int i = 0; i < 10; i++) {
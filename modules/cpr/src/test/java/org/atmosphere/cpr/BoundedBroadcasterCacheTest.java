@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Jean-Francois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+package org.atmosphere.cpr;
+
+import org.atmosphere.cache.BoundedBroadcasterCache;
+import org.atmosphere.cache.BroadcastMessage;
+import org.atmosphere.cache.CacheMessage;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class BoundedBroadcasterCacheTest {
+
+    private AtmosphereResource ar;
+    private DefaultBroadcasterFactory factory;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        AtmosphereConfig config = new AtmosphereFramework().getAtmosphereConfig();
+        config.framework().setBroadcasterCacheClassName(BoundedBroadcasterCache.class.getName());
+        factory = new DefaultBroadcasterFactory(DefaultBroadcaster.class, "NEVER", config);
+        config.framework().setBroadcasterFactory(factory);
+
+        ar = mock(AtmosphereResource.class);
+        when(ar.uuid()).thenReturn("client");
+    }
+
+    @AfterMethod
+    public void unSetUp() throws Exception {
+        factory.destroy();
+    }
+
+    @Test
+    public void boundedCacheTest() {
+        // "e1" is estimated at 44 bytes, so only two messages fit
+        BoundedBroadcasterCache cache = new BoundedBroadcasterCache().setMaxBytesPerBroadcaster(100);
+        cache.addToCache("test", ar, new BroadcastMessage("e1"));
+        cache.addToCache("test", ar, new BroadcastMessage("e2"));
+        cache.addToCache("test", ar, new BroadcastMessage("e3"));
+
+        assertEquals(cache.evictionCount(), 1);
+        assertEquals(cache.bytes("test"), 88);
+        assertEquals(cache.retrieveFromCache("test", ar), Arrays.<Object>asList("e2", "e3"));
+        assertEquals(cache.retrieveFromCache("test", ar).size(), 0);
+        assertEquals(cache.hitCount(), 1);
+        assertEquals(cache.missCount(), 1);
+        assertEquals(cache.bytes(), 0);
+    }
+
+    @Test
+    public void globalQuotaTest() {
+        // Every Broadcaster gets its own cache, sharing the global quota.
+        BoundedBroadcasterCache a = cache(factory.get(DefaultBroadcaster.class, "a"));
+        BoundedBroadcasterCache b = cache(factory.get(DefaultBroadcaster.class, "b"));
+        assertTrue(a != b);
+        a.setMaxBytes(100);
+
+        // Two messages fit, whatever their Broadcaster
+        a.addToCache("a", ar, new BroadcastMessage("e1"));
+        b.addToCache("b", ar, new BroadcastMessage("e2"));
+        b.addToCache("b", ar, new BroadcastMessage("e3"));
+
+        assertEquals(a.evictionCount(), 1);
+        assertEquals(b.bytes(), 88);
+        assertEquals(a.bytes("a"), 0);
+        assertEquals(a.retrieveFromCache("a", ar).size(), 0);
+        assertEquals(b.retrieveFromCache("b", ar), Arrays.<Object>asList("e2", "e3"));
+        assertEquals(a.bytes(), 0);
+    }
+
+    @Test
+    public void deliveredMessageTest() {
+        BoundedBroadcasterCache cache = new BoundedBroadcasterCache();
+        AtmosphereResource other = mock(AtmosphereResource.class);
+        when(other.uuid()).thenReturn("other");
+        cache.retrieveFromCache("test", ar);
+        cache.retrieveFromCache("test", other);
+
+        // Cached once for both clients, released once both received it.
+        CacheMessage m = cache.addToCache("test", null, new BroadcastMessage("e1"));
+        assertEquals(cache.bytes(), 44);
+        cache.clearCache("test", ar, m);
+        assertEquals(cache.bytes(), 44);
+        cache.clearCache("test", other, m);
+        assertEquals(cache.bytes(), 0);
+    }
+
+    @Test
+    public void expirationTest() {
+        BoundedBroadcasterCache cache = new BoundedBroadcasterCache().setMaxCacheTime(500);
+        cache.addToCache("test", ar, new BroadcastMessage("e1"));
+
+        cache.expire(System.currentTimeMillis() + 600);
+        assertEquals(cache.expirationCount(), 1);
+        assertEquals(cache.bytes(), 0);
+
+        cache.addToCache("test", ar, new BroadcastMessage("e2"));
+        assertEquals(cache.bytes(), 44);
+        assertEquals(cache.retrieveFromCache("test", ar), Arrays.<Object>asList("e2"));
+        assertEquals(cache.bytes(), 0);
+    }
+
+    private static BoundedBroadcasterCache cache(Broadcaster b) {
+        return BoundedBroadcasterCache.class.cast(b.getBroadcasterConfig().getBroadcasterCache());
+    }
+}
@@ -19,6 +19,7 @@ import org.atmosphere.cache.AbstractBroadcasterCache;
 import org.atmosphere.cache.BroadcastMessage;
 import org.atmosphere.cache.BroadcasterCacheInspector;
 import org.atmosphere.cache.CacheMessage;
+import org.atmosphere.cache.MappedBroadcasterCache;
 import org.atmosphere.cache.UUIDBroadcasterCache;
 import org.atmosphere.container.BlockingIOCometSupport;
 import org.atmosphere.util.SimpleBroadcaster;
@@ -27,16 +28,22 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 import static org.testng.AssertJUnit.assertNotNull;
 
 public class BroadcasterCacheTest {
@@ -262,4 +269,145 @@ public class BroadcasterCacheTest {
         // Blocked by the cache because suspend has been called.
         assertEquals(cache.messages().isEmpty(), true);
     }
+
+    @Test
+    public void testTimeOrderedRetrieval() {
+        TimeCache cache = new TimeCache();
+        cache.setMaxCacheSize(4);
+
+        CacheMessage[] m = new CacheMessage[6];
+        // Added slightly out of order, as concurrent broadcasts may do.
+        for (int i : new int[]{0, 1, 3, 2, 4, 5}) {
+            m[i] = cache.addToCache("test", null, new BroadcastMessage("t" + i * 10));
+        }
+        cache.clearCache("test", null, m[3]);
+
+        // t0 and t10 have been dropped, t30 removed.
+        assertEquals(cache.after(0), Arrays.<Object>asList("t20", "t40", "t50"));
+        assertEquals(cache.after(20), Arrays.<Object>asList("t40", "t50"));
+        assertEquals(cache.after(50).size(), 0);
+    }
+
+    @Test
+    public void testDeprecatedFields() {
+        TimeCache cache = new TimeCache();
+        CacheMessage m = cache.addToCache("test", null, new BroadcastMessage("t10"));
+
+        assertEquals(cache.messages(), Arrays.asList(m));
+        assertTrue(cache.messagesIds().contains(m.getId()));
+        assertFalse(cache.messages().remove(null));
+
+        // Removing an ID removes its message.
+        assertTrue(cache.messagesIds().remove(m.getId()));
+        assertTrue(cache.messages().isEmpty());
+    }
+
+    @Test
+    public void testBoundedByDefault() {
+        TimeCache cache = new TimeCache();
+        for (int i = 0; i <= AbstractBroadcasterCache.DEFAULT_MAX_CACHE_SIZE; i++) {
+            cache.addToCache("test", null, new BroadcastMessage("t" + i));
+        }
+
+        // The oldest message has been dropped.
+        assertEquals(cache.messages().size(), AbstractBroadcasterCache.DEFAULT_MAX_CACHE_SIZE);
+        assertEquals(cache.after(0).size(), AbstractBroadcasterCache.DEFAULT_MAX_CACHE_SIZE);
+    }
+
+    @Test
+    public void testMappedCacheSurvivesRestart() throws IOException {
+        File directory = File.createTempFile("atmosphere", "cache");
+        directory.delete();
+
+        MappedBroadcasterCache cache = new MappedBroadcasterCache().setDirectory(directory).setSegmentSize(64);
+        cache.addToCache("test", null, new BroadcastMessage("e1"));
+        cache.addToCache("test", null, new BroadcastMessage("e2"));
+        cache.addToCache("test", null, new BroadcastMessage("e3"));
+        cache.stop();
+
+        AtmosphereRequest request = mock(AtmosphereRequest.class);
+        when(request.getHeader(HeaderConfig.X_CACHE_DATE)).thenReturn("0");
+        AtmosphereResource r = new AtmosphereResourceImpl(broadcaster.getBroadcasterConfig().getAtmosphereConfig(),
+                broadcaster,
+                request,
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                new AR());
+
+        MappedBroadcasterCache restarted = new MappedBroadcasterCache().setDirectory(directory);
+        assertEquals(restarted.retrieveFromCache("test", r), Arrays.<Object>asList("e1", "e2", "e3"));
+        restarted.stop();
+    }
+
+    @Test
+    public void testMappedCacheCursor() throws IOException {
+        File directory = File.createTempFile("atmosphere", "cache");
+        directory.delete();
+
+        MappedBroadcasterCache cache = new MappedBroadcasterCache().setDirectory(directory);
+        AtmosphereResource r = new AtmosphereResourceImpl(broadcaster.getBroadcasterConfig().getAtmosphereConfig(),
+                broadcaster,
+                mock(AtmosphereRequest.class),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                new AR());
+        assertEquals(cache.retrieveFromCache("test", r).size(), 0);
+
+        CacheMessage e1 = cache.addToCache("test", null, new BroadcastMessage("e1"));
+        CacheMessage e2 = cache.addToCache("test", null, new BroadcastMessage("e2"));
+        // e1 is still pending, so the cursor doesn't move past it.
+        cache.clearCache("test", r, e2);
+        assertEquals(cache.retrieveFromCache("test", r), Arrays.<Object>asList("e1", "e2"));
+
+        CacheMessage e3 = cache.addToCache("test", null, new BroadcastMessage("e3"));
+        cache.clearCache("test", r, e3);
+        assertEquals(cache.retrieveFromCache("test", r).size(), 0);
+        assertNotNull(e1);
+        cache.stop();
+    }
+
+    @Test
+    public void testMappedCacheReopensIdleLog() throws IOException {
+        File directory = File.createTempFile("atmosphere", "cache");
+        directory.delete();
+
+        MappedBroadcasterCache cache = new MappedBroadcasterCache().setDirectory(directory).setMaxCacheTime(1000);
+        assertNotNull(cache.addToCache("test", null, new BroadcastMessage("e1")));
+
+        // The idle log is closed, the next message reopens it.
+        assertEquals(cache.expire(System.currentTimeMillis() + 2000), -1);
+        assertNotNull(cache.addToCache("test", null, new BroadcastMessage("e2")));
+        cache.stop();
+    }
+
+    @Test
+    public void testMappedCacheRequiresDirectory() {
+        MappedBroadcasterCache cache = new MappedBroadcasterCache();
+        assertEquals(cache.addToCache("test", null, new BroadcastMessage("e1")), null);
+    }
+
+    // Messages "t<time>" are cached at that time.
+    public final static class TimeCache extends AbstractBroadcasterCache {
+        @Override
+        public CacheMessage addToCache(String id, AtmosphereResource r, BroadcastMessage e) {
+            return put(e, Long.valueOf(e.message.toString().substring(1)));
+        }
+
+        @Override
+        public List<Object> retrieveFromCache(String id, AtmosphereResource r) {
+            return Collections.emptyList();
+        }
+
+        public List<Object> after(long time) {
+            return get(time);
+        }
+
+        public List<CacheMessage> messages() {
+            return messages;
+        }
+
+        public Set<String> messagesIds() {
+            return messagesIds;
+        }
+    }
 }
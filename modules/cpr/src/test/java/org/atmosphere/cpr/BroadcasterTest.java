@@ -24,14 +24,17 @@ import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 public class BroadcasterTest {
@@ -78,6 +81,78 @@ public class BroadcasterTest {
         assertEquals(atmosphereHandler.value.get(), new HashSet());
     }
 
+    @Test
+    public void testAtmosphereResourcesIndexedByUUID() throws ExecutionException, InterruptedException, ServletException {
+        broadcaster.addAtmosphereResource(ar);
+        assertEquals(broadcaster.getAtmosphereResources().size(), 1);
+        assertTrue(broadcaster.getAtmosphereResources().contains(ar));
+
+        AtmosphereRequest request = AtmosphereRequest.newInstance();
+        request.setAttribute(ApplicationConfig.SUSPENDED_ATMOSPHERE_RESOURCE_UUID, ar.uuid());
+        AtmosphereResource sameUUID = new AtmosphereResourceImpl(ar.getAtmosphereConfig(),
+                broadcaster,
+                request,
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                atmosphereHandler);
+
+        assertFalse(broadcaster.getAtmosphereResources().contains(sameUUID));
+        broadcaster.removeAtmosphereResource(sameUUID);
+        assertTrue(broadcaster.getAtmosphereResources().contains(ar));
+
+        broadcaster.removeAtmosphereResource(ar);
+        assertEquals(broadcaster.getAtmosphereResources().size(), 0);
+    }
+
+    @Test
+    public void testRemoveAllAtmosphereResourceIndex() throws ExecutionException, InterruptedException, ServletException {
+        DefaultBroadcasterFactory factory = (DefaultBroadcasterFactory) ar.getAtmosphereConfig().getBroadcasterFactory();
+        Broadcaster two = factory.get(DefaultBroadcaster.class, "two");
+        factory.get(DefaultBroadcaster.class, "three");
+        two.addAtmosphereResource(ar);
+
+        assertEquals(factory.lookupAll(ar).size(), 2);
+        assertTrue(factory.lookupAll(ar).contains(broadcaster));
+        assertTrue(factory.lookupAll(ar).contains(two));
+
+        factory.removeAllAtmosphereResource(ar);
+        assertEquals(broadcaster.getAtmosphereResources().size(), 0);
+        assertEquals(two.getAtmosphereResources().size(), 0);
+        assertEquals(factory.lookupAll(ar).size(), 0);
+    }
+
+    @Test
+    public void testAtmosphereResourcesInsertionOrder() throws ExecutionException, InterruptedException, ServletException {
+        List<AtmosphereResource> expected = new ArrayList<AtmosphereResource>();
+        expected.add(ar);
+        for (int i = 0; i < 10; i++) {
+            AtmosphereResource r = new AtmosphereResourceImpl(ar.getAtmosphereConfig(),
+                    broadcaster,
+                    AtmosphereRequest.newInstance(),
+                    AtmosphereResponse.newInstance(),
+                    mock(BlockingIOCometSupport.class),
+                    atmosphereHandler);
+            broadcaster.addAtmosphereResource(r);
+            expected.add(r);
+        }
+
+        broadcaster.removeAtmosphereResource(expected.remove(5));
+        assertEquals(new ArrayList<AtmosphereResource>(broadcaster.getAtmosphereResources()), expected);
+
+        // The FIFO policy resumes the oldest AtmosphereResource.
+        broadcaster.setSuspendPolicy(expected.size(), Broadcaster.POLICY.FIFO);
+        AtmosphereResource r = new AtmosphereResourceImpl(ar.getAtmosphereConfig(),
+                broadcaster,
+                AtmosphereRequest.newInstance(),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                atmosphereHandler);
+        broadcaster.addAtmosphereResource(r);
+        expected.remove(0);
+        expected.add(r);
+        assertEquals(new ArrayList<AtmosphereResource>(broadcaster.getAtmosphereResources()), expected);
+    }
+
     @Test
     public void testAtmosphereResourceCancel() throws ExecutionException, InterruptedException, ServletException, IOException {
         Broadcaster two = ar.getAtmosphereConfig().getBroadcasterFactory().get(DefaultBroadcaster.class, "two");
@@ -186,6 +261,46 @@ public class BroadcasterTest {
         assertEquals(atmosphereHandler.value.get().size(), set.size());
     }
 
+    @Test
+    public void testShareEncodedMessage() throws ExecutionException, InterruptedException, ServletException {
+        DefaultBroadcaster.class.cast(broadcaster).shareEncodedMessage = true;
+
+        final Set<Object> encoded = new HashSet<Object>();
+        AtmosphereHandler h = new AtmosphereHandler() {
+            @Override
+            public void onRequest(AtmosphereResource e) throws IOException {
+            }
+
+            @Override
+            public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+                synchronized (encoded) {
+                    encoded.add(e.getResource().getRequest().getAttribute(FrameworkConfig.ENCODED_MESSAGE));
+                }
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+
+        AtmosphereConfig config = ar.getAtmosphereConfig();
+        for (int i = 0; i < 2; i++) {
+            broadcaster.addAtmosphereResource(new AtmosphereResourceImpl(config,
+                    broadcaster,
+                    AtmosphereRequest.newInstance(),
+                    AtmosphereResponse.newInstance(),
+                    mock(BlockingIOCometSupport.class),
+                    h));
+        }
+
+        broadcaster.broadcast("foo").get();
+
+        assertEquals(encoded.size(), 1);
+        EncodedMessage m = (EncodedMessage) encoded.iterator().next();
+        assertTrue(m.isEncodingOf("foo"));
+        assertEquals(m.bytes("UTF-8"), "foo".getBytes("UTF-8"));
+    }
+
     public final static class AR implements AtmosphereHandler {
 
         public AtomicReference<Set> value = new AtomicReference<Set>(new HashSet());
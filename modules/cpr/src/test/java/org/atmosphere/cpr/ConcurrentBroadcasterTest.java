@@ -16,19 +16,28 @@
 package org.atmosphere.cpr;
 
 import org.atmosphere.container.BlockingIOCometSupport;
+import org.atmosphere.util.PriorityLanes;
 import org.atmosphere.util.SimpleBroadcaster;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class ConcurrentBroadcasterTest {
 
@@ -343,6 +352,313 @@ public class ConcurrentBroadcasterTest {
         System.out.println("Took: " + (System.currentTimeMillis() - t1));
     }
 
+    @Test
+    public void testOrderedBroadcastSharedWriteShard() throws InterruptedException {
+        // All AtmosphereResource are written by the same shard.
+        broadcaster.writeShardsCount = 1;
+
+        AR a1 = new AR();
+        AR a2 = new AR();
+        broadcaster.addAtmosphereResource(newAR(a1));
+        broadcaster.addAtmosphereResource(newAR(a2));
+
+        final CountDownLatch latch = new CountDownLatch(2000);
+        broadcaster.addBroadcasterListener(new BroadcasterListenerAdapter() {
+            @Override
+            public void onComplete(Broadcaster b) {
+                latch.countDown();
+            }
+        });
+
+        StringBuffer b = new StringBuffer();
+        for (int i = 0; i < 1000; i++) {
+            b.append("message-" + i);
+            broadcaster.broadcast("message-" + i);
+        }
+        latch.await(60, TimeUnit.SECONDS);
+
+        assertEquals(a1.value.get().toString(), b.toString());
+        assertEquals(a2.value.get().toString(), b.toString());
+    }
+
+    @Test
+    public void testCoalescedBroadcast() throws InterruptedException {
+        broadcaster.coalesceWrites = true;
+        broadcaster.coalesceMaxDelay = 1000;
+
+        final List<Object> received = new ArrayList<Object>();
+        final AtomicInteger stateChanges = new AtomicInteger();
+        broadcaster.addAtmosphereResource(newAR(new AtmosphereHandler() {
+            @Override
+            public void onRequest(AtmosphereResource e) throws IOException {
+            }
+
+            @Override
+            public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+                stateChanges.incrementAndGet();
+                received.addAll((List) e.getMessage());
+            }
+
+            @Override
+            public void destroy() {
+            }
+        }));
+
+        final CountDownLatch latch = new CountDownLatch(10);
+        broadcaster.addBroadcasterListener(new BroadcasterListenerAdapter() {
+            @Override
+            public void onComplete(Broadcaster b) {
+                latch.countDown();
+            }
+        });
+
+        List<Object> expected = new ArrayList<Object>();
+        for (int i = 0; i < 10; i++) {
+            expected.add("message-" + i);
+            broadcaster.broadcast("message-" + i);
+        }
+        latch.await(10, TimeUnit.SECONDS);
+
+        assertEquals(stateChanges.get(), 1);
+        assertEquals(received, expected);
+    }
+
+    @Test
+    public void testOrderedFanOutBroadcast() throws InterruptedException {
+        broadcaster.fanOutThreshold = 10;
+
+        int count = 100;
+        int client = 55;
+        AR[] handlers = new AR[client];
+        for (int i = 0; i < client; i++) {
+            handlers[i] = new AR();
+            broadcaster.addAtmosphereResource(newAR(handlers[i]));
+        }
+
+        final CountDownLatch latch = new CountDownLatch(count * client);
+        broadcaster.addBroadcasterListener(new BroadcasterListenerAdapter() {
+            @Override
+            public void onComplete(Broadcaster b) {
+                latch.countDown();
+            }
+        });
+
+        StringBuffer b = new StringBuffer();
+        for (int i = 0; i < count; i++) {
+            b.append("message-" + i);
+            broadcaster.broadcast("message-" + i);
+        }
+        latch.await(60, TimeUnit.SECONDS);
+
+        for (AR a : handlers) {
+            assertEquals(a.value.get().toString(), b.toString());
+        }
+    }
+
+    @Test
+    public void testSimpleFanOutBroadcast() throws InterruptedException, ExecutionException {
+        AtmosphereConfig config = new AtmosphereFramework()
+                .addInitParameter(ApplicationConfig.BROADCASTER_SHARABLE_THREAD_POOLS, "true")
+                .getAtmosphereConfig();
+
+        DefaultBroadcasterFactory factory = new DefaultBroadcasterFactory(SimpleBroadcaster.class, "NEVER", config);
+        config.framework().setBroadcasterFactory(factory);
+        broadcaster = (DefaultBroadcaster) factory.get(SimpleBroadcaster.class, "test");
+        // A SimpleBroadcaster has no ExecutorService to fan out to.
+        broadcaster.fanOutThreshold = 10;
+
+        int client = 55;
+        AR[] handlers = new AR[client];
+        for (int i = 0; i < client; i++) {
+            handlers[i] = new AR();
+            broadcaster.addAtmosphereResource(newAR(handlers[i]));
+        }
+
+        broadcaster.broadcast("message").get();
+
+        for (AR a : handlers) {
+            assertEquals(a.value.get().toString(), "message");
+        }
+    }
+
+    @Test
+    public void testSlowConsumerDropOldest() {
+        broadcaster.maxPendingMessages = 2;
+        AtmosphereResource r = newAR(new AR());
+
+        DefaultBroadcaster.AsyncWriteToken t1 = new DefaultBroadcaster.AsyncWriteToken(r, "a", null, "a");
+        DefaultBroadcaster.AsyncWriteToken t2 = new DefaultBroadcaster.AsyncWriteToken(r, "b", null, "b");
+        DefaultBroadcaster.AsyncWriteToken t3 = new DefaultBroadcaster.AsyncWriteToken(r, "c", null, "c");
+        assertTrue(broadcaster.admit(r, t1));
+        assertTrue(broadcaster.admit(r, t2));
+        assertTrue(broadcaster.admit(r, t3));
+
+        assertFalse(t1.claim());
+        assertTrue(t2.claim());
+        assertTrue(t3.claim());
+        assertEquals(broadcaster.slowConsumerPolicyCount(DefaultBroadcaster.SLOW_CONSUMER_POLICY.DROP_OLDEST), 1);
+    }
+
+    @Test
+    public void testSlowConsumerDropNewest() {
+        broadcaster.maxPendingBytes = 2;
+        broadcaster.slowConsumerPolicy = DefaultBroadcaster.SLOW_CONSUMER_POLICY.DROP_NEWEST;
+        AtmosphereResource r = newAR(new AR());
+
+        DefaultBroadcaster.AsyncWriteToken t1 = new DefaultBroadcaster.AsyncWriteToken(r, "a", null, "a");
+        DefaultBroadcaster.AsyncWriteToken t2 = new DefaultBroadcaster.AsyncWriteToken(r, "b", null, "b");
+        DefaultBroadcaster.AsyncWriteToken t3 = new DefaultBroadcaster.AsyncWriteToken(r, "c", null, "c");
+        assertTrue(broadcaster.admit(r, t1));
+        assertTrue(broadcaster.admit(r, t2));
+        assertFalse(broadcaster.admit(r, t3));
+
+        assertEquals(broadcaster.pendingWrites.get(r.uuid()).messages(), 2);
+        assertEquals(broadcaster.slowConsumerPolicyCount(DefaultBroadcaster.SLOW_CONSUMER_POLICY.DROP_NEWEST), 1);
+    }
+
+    @Test
+    public void testKeyedConflation() {
+        broadcaster.setConflationKey(new ConflationKey() {
+            @Override
+            public Object key(AtmosphereResource r, Object message) {
+                return message.toString().substring(0, message.toString().indexOf('='));
+            }
+        });
+        AtmosphereResource r = newAR(new AR());
+
+        DefaultBroadcaster.AsyncWriteToken t1 = new DefaultBroadcaster.AsyncWriteToken(r, "a=1", null, "a=1");
+        DefaultBroadcaster.AsyncWriteToken t2 = new DefaultBroadcaster.AsyncWriteToken(r, "b=1", null, "b=1");
+        DefaultBroadcaster.AsyncWriteToken t3 = new DefaultBroadcaster.AsyncWriteToken(r, "a=2", null, "a=2");
+        assertTrue(broadcaster.admit(r, t1));
+        assertTrue(broadcaster.admit(r, t2));
+        assertTrue(broadcaster.admit(r, t3));
+
+        assertEquals(broadcaster.pendingWrites.get(r.uuid()).messages(), 2);
+        assertFalse(t1.claim());
+        assertTrue(t2.claim());
+        assertTrue(t3.claim());
+        assertEquals(broadcaster.conflatedCount(), 1);
+    }
+
+    @Test
+    public void testBatchBroadcast() throws Exception {
+        final List<Object> received = new ArrayList<Object>();
+        final AtomicInteger stateChanges = new AtomicInteger();
+        AtmosphereHandler handler = new AtmosphereHandler() {
+            @Override
+            public void onRequest(AtmosphereResource e) throws IOException {
+            }
+
+            @Override
+            public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+                synchronized (received) {
+                    stateChanges.incrementAndGet();
+                    received.addAll((List) e.getMessage());
+                }
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+        broadcaster.addAtmosphereResource(newAR(handler));
+        broadcaster.addAtmosphereResource(newAR(handler));
+
+        broadcaster.broadcastAll(new Object[]{"a", "b", "c"}).get(10, TimeUnit.SECONDS);
+
+        assertEquals(stateChanges.get(), 2);
+        assertEquals(received, Arrays.<Object>asList("a", "b", "c", "a", "b", "c"));
+    }
+
+    @Test
+    public void testFilteredSimpleBatchBroadcast() throws Exception {
+        AtmosphereConfig config = new AtmosphereFramework().getAtmosphereConfig();
+        DefaultBroadcasterFactory factory = new DefaultBroadcasterFactory(SimpleBroadcaster.class, "NEVER", config);
+        config.framework().setBroadcasterFactory(factory);
+        broadcaster = (DefaultBroadcaster) factory.get(SimpleBroadcaster.class, "test");
+        broadcaster.getBroadcasterConfig().addFilter(new BroadcastFilter() {
+            @Override
+            public BroadcastFilter.BroadcastAction filter(Object originalMessage, Object message) {
+                return new BroadcastFilter.BroadcastAction(BroadcastFilter.BroadcastAction.ACTION.ABORT, message);
+            }
+        });
+
+        Future<Object> f = broadcaster.broadcastAll(Arrays.asList("a", "b"));
+        assertTrue(f.isDone());
+    }
+
+    @Test
+    public void testStalledWriteHandOff() throws InterruptedException {
+        // All AtmosphereResource are written by the same shard.
+        broadcaster.writeShardsCount = 1;
+        broadcaster.writeStallTime = 10;
+
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AR a1 = new AR();
+        AR a2 = new AR();
+        broadcaster.addAtmosphereResource(newAR(new AtmosphereHandler() {
+            @Override
+            public void onRequest(AtmosphereResource e) throws IOException {
+            }
+
+            @Override
+            public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+                stalled.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                }
+                a1.onStateChange(e);
+            }
+
+            @Override
+            public void destroy() {
+            }
+        }));
+        broadcaster.addAtmosphereResource(newAR(a2));
+
+        broadcaster.broadcast("message-0");
+        assertTrue(stalled.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        broadcaster.broadcast("message-1");
+        long t = System.currentTimeMillis();
+        while (!a2.value.get().toString().equals("message-0message-1") && System.currentTimeMillis() - t < 10000) {
+            Thread.sleep(10);
+        }
+        // Written while the first AtmosphereResource is stalled.
+        assertEquals(a2.value.get().toString(), "message-0message-1");
+        assertEquals(a1.value.get().toString(), "");
+
+        release.countDown();
+        t = System.currentTimeMillis();
+        while (!a1.value.get().toString().equals("message-0message-1") && System.currentTimeMillis() - t < 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals(a1.value.get().toString(), "message-0message-1");
+    }
+
+    @Test
+    public void testPriorityLanes() {
+        PriorityLanes<String> lanes = new PriorityLanes<String>(2,
+                new ConcurrentLinkedQueue<String>(), new ConcurrentLinkedQueue<String>());
+        lanes.offer(1, "normal-1");
+        lanes.offer(1, "normal-2");
+        for (int i = 0; i < 4; i++) {
+            lanes.offer(0, "high-" + i);
+        }
+
+        StringBuilder b = new StringBuilder();
+        String s;
+        while ((s = lanes.poll()) != null) {
+            b.append(s).append(",");
+        }
+        // A lower priority lane is served after two elements of the higher priority lane.
+        assertEquals(b.toString(), "high-0,high-1,normal-1,high-2,high-3,normal-2,");
+        assertTrue(lanes.isEmpty());
+    }
+
     AtmosphereResource newAR(AtmosphereHandler a) {
         return new AtmosphereResourceImpl(broadcaster.getBroadcasterConfig().getAtmosphereConfig(),
                 broadcaster,
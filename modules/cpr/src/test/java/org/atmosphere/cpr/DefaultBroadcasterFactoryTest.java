@@ -261,6 +261,48 @@ public class DefaultBroadcasterFactoryTest {
 
     }
 
+    @Test
+    public void concurrentCreateIfAbsentTest() throws InterruptedException {
+        final DefaultBroadcasterFactory f = new DefaultBroadcasterFactory(DefaultBroadcaster.class, "NEVER", config);
+        final AtomicInteger created = new AtomicInteger();
+        f.addBroadcasterListener(new BroadcasterListenerAdapter() {
+            @Override
+            public void onPostCreate(Broadcaster b) {
+                created.incrementAndGet();
+            }
+        });
+
+        final CountDownLatch latch = new CountDownLatch(1000);
+        ExecutorService r = Executors.newFixedThreadPool(16);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                final int id = i % 10;
+                r.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Never the same String instance, hence never the same monitor.
+                            f.lookup(new String("id-" + id), true);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+        } finally {
+            r.shutdown();
+        }
+        latch.await(10, TimeUnit.SECONDS);
+
+        try {
+            assertEquals(latch.getCount(), 0);
+            assertEquals(f.lookupAll().size(), 10);
+            assertEquals(created.get(), 10);
+        } finally {
+            f.destroy();
+        }
+    }
+
     public final static class TestBroadcaster extends DefaultBroadcaster {
 
         public static AtomicInteger instance = new AtomicInteger();
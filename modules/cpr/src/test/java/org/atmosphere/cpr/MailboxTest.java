@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 Jean-Francois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+
+import org.atmosphere.container.BlockingIOCometSupport;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the {@link DefaultBroadcaster.Mailbox} delivering the messages of a {@link DefaultBroadcaster}.
+ */
+public class MailboxTest {
+
+    private final static int MESSAGES = 200;
+
+    private Broadcaster broadcaster;
+    private CountingExecutor executor;
+    private Collector handler;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        AtmosphereConfig config = new AtmosphereFramework().getAtmosphereConfig();
+        DefaultBroadcasterFactory factory = new DefaultBroadcasterFactory(DefaultBroadcaster.class, "NEVER", config);
+        config.framework().setBroadcasterFactory(factory);
+        broadcaster = factory.get(DefaultBroadcaster.class, "mailbox");
+
+        executor = new CountingExecutor();
+        broadcaster.getBroadcasterConfig().setExecutorService(executor);
+
+        handler = new Collector();
+        broadcaster.addAtmosphereResource(new AtmosphereResourceImpl(config,
+                broadcaster,
+                AtmosphereRequest.newInstance(),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                handler));
+    }
+
+    @AfterMethod
+    public void unSetUp() throws Exception {
+        broadcaster.destroy();
+        executor.shutdownNow();
+        DefaultBroadcasterFactory.getDefault().destroy();
+    }
+
+    @Test
+    public void testFifoOrderAcrossBatches() throws Exception {
+        List<String> expected = new ArrayList<String>();
+        Future<Object> last = null;
+        for (int i = 0; i < MESSAGES; i++) {
+            expected.add(String.valueOf(i));
+            last = broadcaster.broadcast(String.valueOf(i));
+        }
+        last.get(10, TimeUnit.SECONDS);
+
+        assertTrue(handler.await(MESSAGES));
+        assertEquals(handler.messages(), expected);
+        // More messages than a batch were queued, so the mailbox yielded and was re-scheduled.
+        assertTrue(executor.executed.get() > 1);
+    }
+
+    @Test
+    public void testRescheduleWhileDraining() throws Exception {
+        // Per request filters run on the mailbox thread, so the last message of a batch queues a new one while
+        // the mailbox is still draining. The run submitted for it bounces off the draining mailbox, which must
+        // re-schedule itself for the late message.
+        broadcaster.getBroadcasterConfig().addFilter(new PerRequestBroadcastFilter() {
+            @Override
+            public BroadcastAction filter(AtmosphereResource r, Object originalMessage, Object message) {
+                if ("63".equals(originalMessage)) {
+                    broadcaster.broadcast("late");
+                }
+                return new BroadcastAction(message);
+            }
+
+            @Override
+            public BroadcastAction filter(Object originalMessage, Object message) {
+                return new BroadcastAction(message);
+            }
+        });
+
+        List<String> expected = new ArrayList<String>();
+        // DefaultBroadcaster delivers 64 messages per batch.
+        for (int i = 0; i < 64; i++) {
+            expected.add(String.valueOf(i));
+            broadcaster.broadcast(String.valueOf(i));
+        }
+        expected.add("late");
+
+        assertTrue(handler.await(expected.size()));
+        assertEquals(handler.messages(), expected);
+    }
+
+    @Test
+    public void testIdleBroadcasterHoldsNoThread() throws Exception {
+        broadcaster.broadcast("foo").get(10, TimeUnit.SECONDS);
+        assertTrue(handler.await(1));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(executor.getActiveCount(), 0);
+        assertTrue(executor.getQueue().isEmpty());
+
+        int executed = executor.executed.get();
+        Thread.sleep(100);
+        assertEquals(executor.executed.get(), executed);
+        assertEquals(executor.getActiveCount(), 0);
+    }
+
+    private final static class CountingExecutor extends ThreadPoolExecutor {
+
+        private final AtomicInteger executed = new AtomicInteger();
+
+        CountingExecutor() {
+            super(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            executed.incrementAndGet();
+            super.execute(command);
+        }
+    }
+
+    private final static class Collector implements AtmosphereHandler {
+
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onRequest(AtmosphereResource e) throws IOException {
+        }
+
+        @Override
+        public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+            messages.add(e.getMessage().toString());
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        boolean await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (messages.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            return messages.size() >= count;
+        }
+
+        List<String> messages() {
+            synchronized (messages) {
+                return new ArrayList<String>(messages);
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.atmosphere.cpr;
 
+import org.atmosphere.util.PathTrie;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -96,6 +97,21 @@ public class MetaBroadcasterTest {
 
     }
 
+    @Test
+    public void indexedWildcardTest() throws ExecutionException, InterruptedException {
+        factory.get("/a/chat1");
+        factory.get("/a/chat2/room");
+        factory.get("/b/chat1");
+
+        assertEquals(factory.lookupAll(PathTrie.segments("/a"), false).size(), 2);
+        assertEquals(MetaBroadcaster.getDefault().broadcastTo("/a/*", "yo").get().size(), 2);
+        assertEquals(MetaBroadcaster.getDefault().broadcastTo("/a/chat2/*", "yo").get().size(), 1);
+
+        factory.remove("/a/chat1");
+        assertEquals(MetaBroadcaster.getDefault().broadcastTo("/a/*", "yo").get().size(), 1);
+        assertEquals(MetaBroadcaster.getDefault().broadcastTo("/*/chat1", "yo").get().size(), 1);
+    }
+
     @Test
     public void underscoreMatching() throws ExecutionException, InterruptedException {
         factory.get("/a/_b");
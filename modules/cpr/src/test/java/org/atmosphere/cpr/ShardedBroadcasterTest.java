@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+
+import org.atmosphere.container.BlockingIOCometSupport;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+
+public class ShardedBroadcasterTest {
+
+    private AtmosphereConfig config;
+    private ShardedBroadcaster broadcaster;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        config = new AtmosphereFramework()
+                .addInitParameter(ApplicationConfig.BROADCASTER_SHARDS, "4")
+                .getAtmosphereConfig();
+        DefaultBroadcasterFactory factory = new DefaultBroadcasterFactory(ShardedBroadcaster.class, "NEVER", config);
+        config.framework().setBroadcasterFactory(factory);
+        broadcaster = factory.get(ShardedBroadcaster.class, "sharded");
+    }
+
+    @AfterMethod
+    public void unSetUp() throws Exception {
+        broadcaster.destroy();
+        BroadcasterFactory.getDefault().destroy();
+    }
+
+    @Test
+    public void testBroadcast() throws ExecutionException, InterruptedException {
+        final AtomicInteger completed = new AtomicInteger();
+        broadcaster.addBroadcasterListener(new BroadcasterListenerAdapter() {
+            @Override
+            public void onComplete(Broadcaster b) {
+                completed.incrementAndGet();
+            }
+        });
+
+        List<AR> handlers = new ArrayList<AR>();
+        Set<AtmosphereResource> subset = new HashSet<AtmosphereResource>();
+        for (int i = 0; i < 16; i++) {
+            AR a = new AR();
+            AtmosphereResource r = newAR(a);
+            broadcaster.addAtmosphereResource(r);
+            handlers.add(a);
+            if (i % 2 == 0) {
+                subset.add(r);
+            }
+        }
+        assertEquals(broadcaster.shards(), 4);
+        assertEquals(broadcaster.getAtmosphereResources().size(), 16);
+
+        broadcaster.broadcast("a").get();
+        broadcaster.broadcast("b", subset).get();
+
+        for (int i = 0; i < handlers.size(); i++) {
+            assertEquals(handlers.get(i).messages.toString(), i % 2 == 0 ? "[a, b]" : "[a]");
+        }
+        assertEquals(completed.get(), 16 + 8);
+    }
+
+    @Test
+    public void testBroadcastAll() throws ExecutionException, InterruptedException {
+        List<AR> handlers = new ArrayList<AR>();
+        for (int i = 0; i < 8; i++) {
+            AR a = new AR();
+            broadcaster.addAtmosphereResource(newAR(a));
+            handlers.add(a);
+        }
+
+        // The Future completes once the whole batch has been delivered.
+        broadcaster.broadcastAll(Arrays.asList("a", "b", "c")).get();
+
+        for (AR a : handlers) {
+            assertEquals(a.messages.toString(), "[a, b, c]");
+        }
+    }
+
+    @Test
+    public void testCallableResolvedByExecutor() throws ExecutionException, InterruptedException {
+        final AtomicReference<Thread> resolver = new AtomicReference<Thread>();
+        AR a = new AR();
+        broadcaster.addAtmosphereResource(newAR(a));
+
+        broadcaster.broadcast(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                resolver.set(Thread.currentThread());
+                return "a";
+            }
+        }).get();
+
+        assertEquals(a.messages.toString(), "[a]");
+        assertNotSame(resolver.get(), Thread.currentThread());
+    }
+
+    @Test
+    public void testRemove() throws ExecutionException, InterruptedException {
+        AR a = new AR();
+        AR b = new AR();
+        AtmosphereResource r = newAR(a);
+        broadcaster.addAtmosphereResource(r);
+        broadcaster.addAtmosphereResource(newAR(b));
+
+        broadcaster.removeAtmosphereResource(r);
+        broadcaster.broadcast("a").get();
+
+        assertEquals(a.messages.size(), 0);
+        assertEquals(b.messages.toString(), "[a]");
+    }
+
+    AtmosphereResource newAR(AtmosphereHandler a) {
+        return new AtmosphereResourceImpl(config,
+                broadcaster,
+                mock(AtmosphereRequest.class),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                a);
+    }
+
+    public final static class AR implements AtmosphereHandler {
+
+        public final List<Object> messages = new ArrayList<Object>();
+
+        @Override
+        public void onRequest(AtmosphereResource e) throws IOException {
+        }
+
+        @Override
+        public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+            synchronized (messages) {
+                messages.add(e.getMessage());
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
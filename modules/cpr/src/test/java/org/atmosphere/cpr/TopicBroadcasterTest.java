@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 Jeanfrancois Arcand
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.atmosphere.cpr;
+
+import org.atmosphere.cache.BroadcastMessage;
+import org.atmosphere.container.BlockingIOCometSupport;
+import org.atmosphere.util.TopicBroadcaster;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TopicBroadcasterTest {
+
+    private AtmosphereConfig config;
+    private TopicBroadcaster broadcaster;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        config = new AtmosphereFramework().getAtmosphereConfig();
+        DefaultBroadcasterFactory factory = new DefaultBroadcasterFactory(TopicBroadcaster.class, "NEVER", config);
+        config.framework().setBroadcasterFactory(factory);
+        broadcaster = factory.get(TopicBroadcaster.class, "topics");
+    }
+
+    @AfterMethod
+    public void unSetUp() throws Exception {
+        broadcaster.destroy();
+        BroadcasterFactory.getDefault().destroy();
+    }
+
+    @Test
+    public void testPublish() throws ExecutionException, InterruptedException {
+        AR exact = new AR();
+        AR room = new AR();
+        AR org = new AR();
+        AtmosphereResource r1 = newAR(exact);
+        AtmosphereResource r2 = newAR(room);
+        AtmosphereResource r3 = newAR(org);
+
+        broadcaster.subscribe("/org/42/room/7", r1);
+        broadcaster.subscribe("/org/42/room/*", r2);
+        broadcaster.subscribe("/org/42/**", r3);
+        // Matching twice must not deliver twice.
+        broadcaster.subscribe("/org/42/room/7", r3);
+
+        broadcaster.publish("/org/42/room/7", "a").get();
+        broadcaster.publish("/org/42/room/8", "b").get();
+        broadcaster.publish("/org/42/room/8/thread/3", "c").get();
+        broadcaster.publish("/org/43/room/7", "d").get();
+
+        assertEquals(exact.messages.toString(), "[a]");
+        assertEquals(room.messages.toString(), "[a, b]");
+        assertEquals(org.messages.toString(), "[a, b, c]");
+    }
+
+    @Test
+    public void testUnsubscribe() {
+        AtmosphereResource r = newAR(new AR());
+        broadcaster.subscribe("/org/42/*", r);
+        broadcaster.subscribe("/org/43/*", r);
+        assertEquals(broadcaster.subscribers("/org/42/room").size(), 1);
+
+        broadcaster.unsubscribe("/org/42/*", r);
+        assertEquals(broadcaster.subscribers("/org/42/room").size(), 0);
+        assertEquals(broadcaster.subscriptions(r).size(), 1);
+
+        // The subscriptions survive a reconnection.
+        broadcaster.removeAtmosphereResource(r);
+        assertEquals(broadcaster.subscribers("/org/43/room").size(), 0);
+        assertEquals(broadcaster.subscriptions(r).size(), 1);
+
+        broadcaster.addAtmosphereResource(r);
+        assertEquals(broadcaster.subscribers("/org/43/room").size(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNonTrailingAnySegments() {
+        broadcaster.subscribe("/org/**/room", newAR(new AR()));
+    }
+
+    @Test
+    public void testSubscriptionTimeout() {
+        AtmosphereResource r = newAR(new AR());
+        broadcaster.setSubscriptionTimeout(1000);
+        broadcaster.subscribe("/org/42/*", r);
+
+        broadcaster.removeAtmosphereResource(r);
+        long now = System.currentTimeMillis();
+        assertTrue(broadcaster.expire(now) > now);
+        assertEquals(broadcaster.subscriptions(r).size(), 1);
+
+        assertEquals(broadcaster.expire(now + 2000), -1);
+        assertTrue(broadcaster.subscriptions(r).isEmpty());
+    }
+
+    @Test
+    public void testPublishOnlyCachesForSubscribers() throws ExecutionException, InterruptedException {
+        BroadcasterCache cache = mock(BroadcasterCache.class);
+        broadcaster.getBroadcasterConfig().setBroadcasterCache(cache);
+
+        AtmosphereResource r1 = newAR(new AR());
+        AtmosphereResource r2 = newAR(new AR());
+        broadcaster.subscribe("/org/42/*", r1);
+        broadcaster.addAtmosphereResource(r2);
+
+        broadcaster.publish("/org/42/room", "a").get();
+
+        verify(cache).addToCache(eq(broadcaster.getID()), eq(r1), any(BroadcastMessage.class));
+        verify(cache, times(1)).addToCache(anyString(), any(AtmosphereResource.class), any(BroadcastMessage.class));
+    }
+
+    AtmosphereResource newAR(AtmosphereHandler a) {
+        return new AtmosphereResourceImpl(config,
+                broadcaster,
+                mock(AtmosphereRequest.class),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                a);
+    }
+
+    public final static class AR implements AtmosphereHandler {
+
+        public final List<Object> messages = new ArrayList<Object>();
+
+        @Override
+        public void onRequest(AtmosphereResource e) throws IOException {
+        }
+
+        @Override
+        public void onStateChange(AtmosphereResourceEvent e) throws IOException {
+            synchronized (messages) {
+                messages.add(e.getMessage());
+            }
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -15,6 +15,11 @@
  */
 package org.atmosphere.cpr;
 
+import org.atmosphere.cache.BroadcastMessage;
+import org.atmosphere.cache.CacheExpiry;
+import org.atmosphere.cache.CacheMessage;
+import org.atmosphere.cache.MessageEncoder;
+import org.atmosphere.cache.MessageLog;
 import org.atmosphere.cache.UUIDBroadcasterCache;
 import org.atmosphere.container.BlockingIOCometSupport;
 import org.testng.annotations.AfterMethod;
@@ -23,6 +28,10 @@ import org.testng.annotations.Test;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -32,17 +41,20 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 public class UUIDBroadcasterCacheTest {
     private AtmosphereResource ar;
     private Broadcaster broadcaster;
     private AR atmosphereHandler;
     private UUIDBroadcasterCache broadcasterCache;
+    private AtmosphereConfig config;
 
     @BeforeMethod
     public void setUp() throws Exception {
-        AtmosphereConfig config = new AtmosphereFramework().getAtmosphereConfig();
+        config = new AtmosphereFramework().getAtmosphereConfig();
         DefaultBroadcasterFactory factory = new DefaultBroadcasterFactory(DefaultBroadcaster.class, "NEVER", config);
         broadcaster = factory.get(DefaultBroadcaster.class, "test");
         config.framework().setBroadcasterFactory(factory);
@@ -72,7 +84,7 @@ public class UUIDBroadcasterCacheTest {
         broadcaster.broadcast("e2").get();
         broadcaster.broadcast("e3").get();
 
-        assertEquals(broadcasterCache.messages().get(ar.uuid()).getQueue().size(), 2);
+        assertEquals(broadcasterCache.messages().get(ar.uuid()).messages().size(), 2);
     }
 
     @Test
@@ -86,7 +98,7 @@ public class UUIDBroadcasterCacheTest {
         broadcaster.broadcast("e3").get();
 
         assertEquals(broadcasterCache.messages().size(), 1);
-        assertEquals(broadcasterCache.messages().get(ar.uuid()).getQueue().size(), 1);
+        assertEquals(broadcasterCache.messages().get(ar.uuid()).messages().size(), 1);
     }
 
     @Test
@@ -133,7 +145,287 @@ public class UUIDBroadcasterCacheTest {
 
         latch.await(10, TimeUnit.SECONDS);
 
-        assertEquals(broadcasterCache.messages().get(ar.uuid()).getQueue().size(), 100);
+        assertEquals(broadcasterCache.messages().get(ar.uuid()).messages().size(), 100);
+    }
+
+    @Test
+    public void sharedLogTest() throws ExecutionException, InterruptedException, ServletException {
+        broadcasterCache.setSharedLog(true);
+        AtmosphereResource r = new AtmosphereResourceImpl(config,
+                broadcaster,
+                mock(AtmosphereRequest.class),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                new AR());
+        broadcaster.addAtmosphereResource(r);
+
+        broadcaster.broadcast("e1").get();
+        broadcaster.removeAtmosphereResource(r);
+        broadcaster.broadcast("e2").get();
+        broadcaster.broadcast("e3").get();
+
+        // Every message is stored once, whatever the number of clients.
+        assertEquals(broadcasterCache.logs().get(broadcaster.getID()).size(), 3);
+        assertEquals(broadcasterCache.messages().size(), 0);
+
+        assertEquals(broadcasterCache.retrieveFromCache(broadcaster.getID(), r), Arrays.<Object>asList("e2", "e3"));
+        assertEquals(broadcasterCache.retrieveFromCache(broadcaster.getID(), r).size(), 0);
+    }
+
+    @Test
+    public void boundedClientQueueTest() {
+        UUIDBroadcasterCache.ClientQueue queue = new UUIDBroadcasterCache.ClientQueue(3);
+        CacheMessage[] m = new CacheMessage[5];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = new CacheMessage("id" + i, "e" + i);
+            queue.add(m[i]);
+        }
+        // Duplicates are ignored
+        assertEquals(queue.add(m[4]), false);
+
+        assertEquals(queue.messages(), Arrays.asList(m[2], m[3], m[4]));
+        assertEquals(queue.remove(m[3]), true);
+        assertEquals(queue.remove(m[0]), false);
+        assertEquals(queue.messages(), Arrays.asList(m[2], m[4]));
+    }
+
+    @Test
+    public void firstSequenceTest() {
+        UUIDBroadcasterCache.ClientQueue queue = new UUIDBroadcasterCache.ClientQueue(3);
+        CacheMessage[] m = new CacheMessage[4];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = new CacheMessage("id" + i, i, System.nanoTime(), "e" + i);
+        }
+        queue.add(m[1]);
+        queue.add(m[0]);
+        queue.add(m[2]);
+        assertEquals(queue.firstSequence(), 0);
+
+        queue.remove(m[0]);
+        assertEquals(queue.firstSequence(), 1);
+
+        // The oldest message is dropped when the queue is full.
+        queue.add(m[0]);
+        queue.add(m[3]);
+        assertEquals(queue.firstSequence(), 0);
+        queue.remove(m[0]);
+        assertEquals(queue.firstSequence(), 2);
+    }
+
+    @Test
+    public void deprecatedClientQueueTest() {
+        UUIDBroadcasterCache.ClientQueue queue = new UUIDBroadcasterCache.ClientQueue();
+        CacheMessage[] m = new CacheMessage[4];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = new CacheMessage("id" + i, "e" + i);
+            queue.add(m[i]);
+        }
+
+        // The modifications are written through to the queue.
+        LinkedList<CacheMessage> l = queue.getQueue();
+        assertEquals(l.poll(), m[0]);
+        assertEquals(l.remove(m[2]), true);
+        assertEquals(queue.messages(), Arrays.asList(m[1], m[3]));
+
+        queue.getIds().remove("id1");
+        assertEquals(queue.messages(), Arrays.asList(m[3]));
+    }
+
+    @Test
+    public void sequenceCursorTest() {
+        AtmosphereRequest request = mock(AtmosphereRequest.class);
+        AtmosphereResponse response = AtmosphereResponse.newInstance();
+        AtmosphereResource r = mock(AtmosphereResource.class);
+        when(r.uuid()).thenReturn("client");
+        when(r.getRequest()).thenReturn(request);
+        when(r.getResponse()).thenReturn(response);
+
+        UUIDBroadcasterCache cache = new UUIDBroadcasterCache();
+        String prefix = "test:" + cache.epoch() + ":";
+        when(request.getHeader(HeaderConfig.X_CACHE_DATE)).thenReturn(prefix + "2");
+        for (int i = 0; i < 4; i++) {
+            assertEquals(cache.addToCache("test", r, new BroadcastMessage("e" + i)).getSequence(), i);
+        }
+
+        // The client received the first two messages
+        assertEquals(cache.retrieveFromCache("test", r), Arrays.<Object>asList("e2", "e3"));
+        assertEquals(response.getHeader(HeaderConfig.X_CACHE_DATE), prefix + "4");
+    }
+
+    @Test
+    public void foreignCursorTest() {
+        AtmosphereRequest request = mock(AtmosphereRequest.class);
+        AtmosphereResource r = mock(AtmosphereResource.class);
+        when(r.uuid()).thenReturn("client");
+        when(r.getRequest()).thenReturn(request);
+        when(r.getResponse()).thenReturn(AtmosphereResponse.newInstance());
+
+        UUIDBroadcasterCache cache = new UUIDBroadcasterCache();
+        for (int i = 0; i < 3; i++) {
+            cache.addToCache("test", r, new BroadcastMessage("e" + i));
+        }
+
+        // A cursor from before a restart, or of another Broadcaster, doesn't skip any message.
+        when(request.getHeader(HeaderConfig.X_CACHE_DATE)).thenReturn("test:" + UUID.randomUUID() + ":2");
+        assertEquals(cache.retrieveFromCache("test", r), Arrays.<Object>asList("e0", "e1", "e2"));
+
+        for (int i = 3; i < 5; i++) {
+            cache.addToCache("test", r, new BroadcastMessage("e" + i));
+        }
+        when(request.getHeader(HeaderConfig.X_CACHE_DATE)).thenReturn("other:" + cache.epoch() + ":4");
+        assertEquals(cache.retrieveFromCache("test", r), Arrays.<Object>asList("e3", "e4"));
+    }
+
+    @Test
+    public void outOfOrderCursorTest() {
+        AtmosphereResponse response = AtmosphereResponse.newInstance();
+        AtmosphereResource r = mock(AtmosphereResource.class);
+        when(r.uuid()).thenReturn("client");
+        when(r.getResponse()).thenReturn(response);
+
+        UUIDBroadcasterCache cache = new UUIDBroadcasterCache();
+        String prefix = "test:" + cache.epoch() + ":";
+        CacheMessage[] m = new CacheMessage[3];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = cache.addToCache("test", r, new BroadcastMessage("e" + i));
+        }
+        assertEquals(m[0].getId().equals(m[1].getId()), false);
+
+        // e1 is delivered before e0, the cursor stays before e0.
+        cache.clearCache("test", r, m[1]);
+        assertEquals(response.getHeader(HeaderConfig.X_CACHE_DATE), null);
+        cache.clearCache("test", r, m[0]);
+        assertEquals(response.getHeader(HeaderConfig.X_CACHE_DATE), prefix + "2");
+        cache.clearCache("test", r, m[2]);
+        assertEquals(response.getHeader(HeaderConfig.X_CACHE_DATE), prefix + "3");
+    }
+
+    @Test
+    public void messageLogCursorTest() {
+        MessageLog log = new MessageLog(16);
+        log.retrieve("a");
+        log.retrieve("b");
+        MessageLog.Message m0 = log.append("e0", null, 0);
+        MessageLog.Message m1 = log.append("e1", "b", 0);
+        MessageLog.Message m2 = log.append("e2", null, 0);
+
+        // Delivered out of order, the cursor stays before e0, then skips the message of the other client.
+        assertEquals(log.delivered("a", m2), 0);
+        assertEquals(log.delivered("a", m0), 3);
+        assertEquals(log.delivered("b", m1), 0);
+        assertEquals(m0.getId().startsWith(log.epoch()), true);
+    }
+
+    @Test
+    public void encodedCacheTest() throws Exception {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            b.append("message ").append(i);
+        }
+        String large = b.toString();
+
+        UUIDBroadcasterCache cache = new UUIDBroadcasterCache().setEncoder(new MessageEncoder(256));
+        cache.addToCache("test", ar, new BroadcastMessage("e1"));
+        cache.addToCache("test", ar, new BroadcastMessage(large));
+        cache.addToCache("test", ar, new BroadcastMessage("\u00e9t\u00e9 \u20ac"));
+        cache.addToCache("test", ar, new BroadcastMessage(new byte[]{1, 2, 3}));
+        assertEquals(cache.messages().get(ar.uuid()).messages().get(1).getMessage().getClass(), MessageEncoder.Compressed.class);
+
+        // Strings are replayed as Strings, whatever the charset of the response.
+        List<Object> l = cache.retrieveFromCache("test", ar);
+        assertEquals(l.get(0), "e1");
+        assertEquals(l.get(1), large);
+        assertEquals(l.get(2), "\u00e9t\u00e9 \u20ac");
+        assertEquals((byte[]) l.get(3), new byte[]{1, 2, 3});
+    }
+
+    @Test
+    public void expiryTest() {
+        CacheExpiry expiry = new CacheExpiry();
+        try {
+            UUIDBroadcasterCache cache = new UUIDBroadcasterCache();
+            long now = System.currentTimeMillis();
+            // Nothing to expire, the cache isn't visited
+            assertEquals(cache.expire(now), -1);
+
+            cache.addToCache("test", ar, new BroadcastMessage("e1"));
+            assertTrue(cache.expire(now) > now);
+
+            expiry.schedule(cache, now + 60000);
+            expiry.schedule(cache, now + 30000);
+            assertEquals(expiry.size(), 1);
+            expiry.cancel(cache);
+            assertEquals(expiry.size(), 0);
+        } finally {
+            expiry.destroy();
+        }
+    }
+
+    @Test
+    public void expiryThreadTest() throws InterruptedException {
+        CacheExpiry expiry = new CacheExpiry(200);
+        try {
+            // No thread until a deadline is registered
+            assertEquals(expiry.isRunning(), false);
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            expiry.schedule(new CacheExpiry.Expirable() {
+                @Override
+                public long expire(long now) {
+                    latch.countDown();
+                    return -1;
+                }
+            }, System.currentTimeMillis() + 50);
+            assertTrue(expiry.isRunning());
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            // The thread stops once idle.
+            long deadline = System.currentTimeMillis() + 5000;
+            while (expiry.isRunning() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(expiry.isRunning(), false);
+        } finally {
+            expiry.destroy();
+        }
+    }
+
+    @Test
+    public void cacheOnFailureTest() throws ExecutionException, InterruptedException, ServletException {
+        DefaultBroadcaster.class.cast(broadcaster).cacheOnFailure = true;
+        AtmosphereResource ar2 = new AtmosphereResourceImpl(config,
+                broadcaster,
+                mock(AtmosphereRequest.class),
+                AtmosphereResponse.newInstance(),
+                mock(BlockingIOCometSupport.class),
+                atmosphereHandler);
+        broadcaster.addAtmosphereResource(ar2);
+
+        // Delivered, never cached
+        broadcaster.broadcast("e1").get();
+        assertTrue(broadcasterCache.messages().get(ar.uuid()) == null
+                || broadcasterCache.messages().get(ar.uuid()).messages().isEmpty());
+
+        // Only cached for the removed AtmosphereResource
+        broadcaster.removeAtmosphereResource(ar);
+        broadcaster.broadcast("e2").get();
+        assertEquals(broadcasterCache.messages().get(ar.uuid()).messages().size(), 1);
+        assertTrue(broadcasterCache.messages().get(ar2.uuid()) == null
+                || broadcasterCache.messages().get(ar2.uuid()).messages().isEmpty());
+
+        broadcaster.removeAtmosphereResource(ar2);
+    }
+
+    @Test
+    public void cacheOnFailureResumedTest() throws InterruptedException {
+        DefaultBroadcaster.class.cast(broadcaster).cacheOnFailure = true;
+        AtmosphereResource r = mock(AtmosphereResource.class);
+        when(r.uuid()).thenReturn("resumed");
+        when(r.isResumed()).thenReturn(true);
+
+        // Resumed between the dispatch and the write, the message is cached instead of being dropped.
+        DefaultBroadcaster.class.cast(broadcaster).queueWriteIO(r, new Entry("e1", r, null, "e1"));
+        assertEquals(broadcasterCache.messages().get("resumed").messages().size(), 1);
     }
 
     public final static class AR implements AtmosphereHandler {